@@ -0,0 +1,101 @@
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size set of bits that many threads set, clear and read at once without a lock. Each bit is changed with a
+ * compare-and-set on the word holding it, so bits of the same word never overwrite each other. Operations on several
+ * bits (snapshot, cardinality, isEmpty) see each word at some point during the call, not all of them at one instant.
+ */
+class AtomicBitSet {
+
+    private final AtomicLongArray words;
+
+    /**
+     * A set of nbits bits, all clear
+     */
+    public AtomicBitSet(int nbits) {
+        this.words = new AtomicLongArray((nbits + 63) >>> 6);
+    }
+
+    /**
+     * Number of bits, a multiple of 64
+     */
+    public int size() {
+        return this.words.length() << 6;
+    }
+
+    public boolean get(int i) {
+        return (this.words.get(i >>> 6) & (1L << i)) != 0;
+    }
+
+    /**
+     * @return whether the bit was clear before
+     */
+    public boolean set(int i) {
+        int w = i >>> 6;
+        long mask = 1L << i;
+        while(true) {
+            long old = this.words.get(w);
+            if((old & mask) != 0) {
+                return false;
+            }
+            if(this.words.compareAndSet(w, old, old | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return whether the bit was set before
+     */
+    public boolean clear(int i) {
+        int w = i >>> 6;
+        long mask = 1L << i;
+        while(true) {
+            long old = this.words.get(w);
+            if((old & mask) == 0) {
+                return false;
+            }
+            if(this.words.compareAndSet(w, old, old & ~mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Set the bits from from up to to
+     */
+    public void set(int from, int to) {
+        for(int i = from; i < to; i++) {
+            this.set(i);
+        }
+    }
+
+    public boolean isEmpty() {
+        for(int w = 0; w < this.words.length(); w++) {
+            if(this.words.get(w) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int cardinality() {
+        int n = 0;
+        for(int w = 0; w < this.words.length(); w++) {
+            n += Long.bitCount(this.words.get(w));
+        }
+        return n;
+    }
+
+    /**
+     * A copy of the bits, for working with as a BitSet
+     */
+    public BitSet snapshot() {
+        long[] copy = new long[this.words.length()];
+        for(int w = 0; w < copy.length; w++) {
+            copy[w] = this.words.get(w);
+        }
+        return BitSet.valueOf(copy);
+    }
+}
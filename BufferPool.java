@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of buffers for payloads of received messages, so that once it has
+ * warmed up, receiving a bitfield or an in-memory piece does not allocate.
+ *
+ * Buffers come in power of two size classes. Requests larger than the largest
+ * class are allocated and dropped as before.
+ */
+class BufferPool {
+
+    private static final int MIN_SHIFT = 6; // 64 bytes
+    private static final int MAX_SHIFT = 20; // 1 MB
+
+    // Free buffers kept per size class, anything beyond is left to the GC
+    private static final int FREE_PER_CLASS = 32;
+
+    private final ArrayList<ArrayBlockingQueue<ByteBuffer>> free;
+
+    public BufferPool() {
+        this.free = new ArrayList<ArrayBlockingQueue<ByteBuffer>>();
+        for(int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            this.free.add(new ArrayBlockingQueue<ByteBuffer>(FREE_PER_CLASS));
+        }
+    }
+
+    /**
+     * Get a buffer with position 0 and limit len
+     */
+    public ByteBuffer acquire(int len) {
+        int c = sizeClass(len);
+        if(c < 0) {
+            return ByteBuffer.allocate(len);
+        }
+
+        ByteBuffer buf = this.free.get(c).poll();
+        if(buf == null) {
+            buf = ByteBuffer.allocate(1 << (c + MIN_SHIFT));
+        }
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    /**
+     * Give back a buffer from acquire. It must not be used afterwards.
+     */
+    public void release(ByteBuffer buf) {
+        int c = sizeClass(buf.capacity());
+        if(c >= 0 && buf.capacity() == 1 << (c + MIN_SHIFT)) {
+            this.free.get(c).offer(buf);
+        }
+    }
+
+    // Index of the smallest class holding len bytes, -1 if none does
+    private static int sizeClass(int len) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(len, 1) - 1);
+        if(shift > MAX_SHIFT) {
+            return -1;
+        }
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sets up the connections with neighbors. Connections to neighbors with lower
+ * ids are all attempted at once, each bounded by a connect and a handshake
+ * timeout. One that fails is tried again after a delay that doubles with every
+ * failure, so a neighbor that is not up yet is connected to once it is,
+ * whatever order the peers were started in.
+ *
+ * Neighbors are only known by the addresses in PeerInfo.cfg. A host name is
+ * looked up once, and a connecting neighbor is recognized by the id in its
+ * handshake rather than by a reverse lookup of its address.
+ *
+ * The connections themselves are made by a Transport, see use. Once
+ * established, messages are sent through here by neighbor id, and received
+ * ones are handed to the dispatcher.
+ */
+public class ConnectionManager {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    // Delay before the first retry, and the most it grows to (ms)
+    private static final long FIRST_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 5000;
+
+    private final int myid;
+    private final Map<Integer, NeighborPeer> neighbors;
+    private final PeerDispatcher dispatcher; // gets the events of established connections
+    private Transport transport;
+
+    private final int connectTimeout; // ms
+    private final int handshakeTimeout; // ms
+    private final int retries;
+    private final long sendQueueLimit; // bytes of pieces queued for a neighbor before it counts as full
+    private final int maxMessageLength; // bytes of payload a neighbor may send in one message
+
+    // Runs retries and timeouts
+    private final ScheduledExecutorService timer;
+
+    // Failed attempts at connecting to each neighbor, since the last connection made
+    private final ConcurrentHashMap<Integer, Integer> attempts = new ConcurrentHashMap<Integer, Integer>();
+
+    // Neighbors with higher ids that connected to us, and how many should
+    private final Set<Integer> inbound = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final int numInbound;
+
+    // Established connections by neighbor id
+    private final ConcurrentHashMap<Integer, Transport.Link> links = new ConcurrentHashMap<Integer, Transport.Link>();
+
+    public ConnectionManager(int myid, Map<Integer, NeighborPeer> neighbors, PeerDispatcher dispatcher,
+            int connectTimeout, int handshakeTimeout, int retries, long sendQueueLimit, int maxMessageLength) {
+        this.myid = myid;
+        this.neighbors = neighbors;
+        this.dispatcher = dispatcher;
+        this.connectTimeout = connectTimeout;
+        this.handshakeTimeout = handshakeTimeout;
+        this.retries = retries;
+        this.sendQueueLimit = sendQueueLimit;
+        this.maxMessageLength = maxMessageLength;
+
+        int n = 0;
+        for(int id : neighbors.keySet()) {
+            if(id > myid) {
+                n++;
+            }
+        }
+        this.numInbound = n;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "connector");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Make connections with transport. Must be called before listening or connecting.
+     */
+    public void use(Transport transport) {
+        this.transport = transport;
+    }
+
+    public int myid() {
+        return this.myid;
+    }
+
+    /**
+     * Number of neighbors with higher ids, which connect to us
+     */
+    public int numInbound() {
+        return this.numInbound;
+    }
+
+    /**
+     * The configured neighbor with the given id, or null if there is none
+     */
+    public NeighborPeer neighbor(int id) {
+        return this.neighbors.get(id);
+    }
+
+    /**
+     * Bytes of pieces that may be queued for a neighbor before sending it more should wait
+     */
+    public long sendQueueLimit() {
+        return this.sendQueueLimit;
+    }
+
+    /**
+     * Longest payload a neighbor may send in one message. A longer one is taken as a broken or hostile peer.
+     */
+    public int maxMessageLength() {
+        return this.maxMessageLength;
+    }
+
+    /**
+     * Start connecting to the neighbor
+     */
+    public void connect(NeighborPeer peer) {
+        Transport.Link link = this.transport.connect(peer);
+        this.expire(link, this.connectTimeout + this.handshakeTimeout);
+    }
+
+    /**
+     * Accept connections on port until every neighbor with a higher id is connected
+     */
+    public void listen(int port) throws IOException {
+        this.transport.listen(port);
+        if(this.inbound.size() >= this.numInbound) {
+            this.transport.stopListening();
+        }
+    }
+
+    /**
+     * A neighbor connected to us, expect its handshake
+     */
+    public void accepted(Transport.Link link) {
+        this.expire(link, this.handshakeTimeout);
+    }
+
+    // Give up on the connection if it is not established within timeout ms
+    private void expire(final Transport.Link link, long timeout) {
+        this.timer.schedule(new Runnable() {
+            public void run() {
+                link.abort();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The handshake with peer is done, start sending and receiving messages
+     *
+     * @param initiator whether we connected to them
+     */
+    public void established(Transport.Link link, NeighborPeer peer, boolean initiator) {
+        this.links.put(peer.getID(), link);
+        if(initiator) {
+            this.attempts.remove(peer.getID());
+        } else if(this.inbound.add(peer.getID()) && this.inbound.size() == this.numInbound) {
+            logger.debug("all peers with higher ids are connected, closing listener (self = {})", this.myid);
+            this.transport.stopListening();
+        }
+
+        // Send out connection notification
+        this.dispatcher.connected(peer);
+    }
+
+    /**
+     * An established connection with peer id closed
+     */
+    public void closed(int id, Transport.Link link) {
+        this.links.remove(id, link);
+    }
+
+    /**
+     * A message arrived from peer id
+     */
+    public void received(int id, Message msg) {
+        this.dispatcher.received(id, msg);
+    }
+
+    /**
+     * The queue of peer id drained after being full
+     */
+    public void drained(int id) {
+        this.dispatcher.drained(id);
+    }
+
+    /**
+     * Connecting to peer failed before the handshake was done, try again later unless it failed too often
+     */
+    public void failed(final NeighborPeer peer, Exception e) {
+        Integer n = this.attempts.get(peer.getID());
+        n = (n == null) ? 1 : n + 1;
+        this.attempts.put(peer.getID(), n);
+
+        if(n > this.retries) {
+            logger.error("giving up on connecting to peer {} after {} attempts: {} (self = {})",
+                peer.getID(), n, e.toString(), this.myid);
+            return;
+        }
+
+        long delay = Math.min(MAX_BACKOFF, FIRST_BACKOFF << Math.min(n - 1, 16));
+        logger.debug("connecting to peer {} failed, retrying in {} ms: {} (self = {})",
+            peer.getID(), delay, e.toString(), this.myid);
+        this.timer.schedule(new Runnable() {
+            public void run() {
+                connect(peer);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a message for peer id
+     */
+    public void send(int id, Message msg) {
+        Transport.Link link = this.links.get(id);
+        if(link == null) {
+            logger.debug("not connected to peer {}, dropping {} message", id, msg.type);
+        } else {
+            link.send(msg);
+        }
+    }
+
+    /**
+     * Whether so many pieces are queued for peer id that no more should be sent for now. The dispatcher is told
+     * once the queue drains.
+     */
+    public boolean isFull(int id) {
+        Transport.Link link = this.links.get(id);
+        return link != null && link.isFull();
+    }
+
+    /**
+     * How long (ms) the queue of peer id has been full, 0 if it is not
+     */
+    public long fullFor(int id, long now) {
+        Transport.Link link = this.links.get(id);
+        return (link == null) ? 0 : link.fullFor(now);
+    }
+
+    /**
+     * Bytes of pieces queued for peer id
+     */
+    public long queuedBytes(int id) {
+        Transport.Link link = this.links.get(id);
+        return (link == null) ? 0 : link.queuedBytes();
+    }
+
+    /**
+     * Take the piece or block at offset of piece index off the queue of peer id, if it has not been sent yet
+     *
+     * @return whether it was taken off
+     */
+    public boolean cancel(int id, int index, int offset) {
+        Transport.Link link = this.links.get(id);
+        return link != null && link.cancel(index, offset);
+    }
+
+    /**
+     * Close the connection with peer id right away, dropping whatever is still queued for it
+     */
+    public void drop(int id) {
+        Transport.Link link = this.links.get(id);
+        if(link != null) {
+            link.drop();
+        }
+    }
+
+    /**
+     * Close the connection with peer id, once the messages already queued for it have gone out
+     */
+    public void close(int id) {
+        Transport.Link link = this.links.get(id);
+        if(link != null) {
+            link.close();
+        }
+    }
+}
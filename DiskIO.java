@@ -0,0 +1,333 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Does the disk reads and writes of the handlers on threads of its own, so a slow disk does not hold up the
+ * messages of every peer. Whatever is queued for all peers is handed out in order of position in the file, sweeping
+ * from the start of the file to its end and starting over (C-SCAN), rather than in the order it was asked for. The
+ * queue is kept sorted by position, so taking the next job does not look at the others.
+ *
+ * The disk only sees that order with a single thread. Several threads each take the next job in the sweep, but run
+ * them at the same time, so the more threads (virtual threads in particular, see PeerProcess.VirtualThreads) the
+ * less the order matters.
+ *
+ * Reads answer requests: once read, the answer is handed to Reader.send. When a peer asks for pieces one after the
+ * other, the next READ_AHEAD pieces are read ahead for it, and its requests for them are answered from memory.
+ *
+ * Writes are tasks that write a received block; they are always done, even after close is called.
+ */
+class DiskIO implements Runnable {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    // Pieces read ahead of a peer asking for them one after the other
+    private static final int READ_AHEAD = 4;
+
+    /**
+     * Produces and sends the answers to requests
+     */
+    interface Reader {
+        /**
+         * Answer to a request for length bytes at offset of piece, or the whole piece if length is negative. Null
+         * if it cannot be answered.
+         */
+        Message read(int piece, int offset, int length);
+
+        /**
+         * Send the answer to a request of peer
+         */
+        void send(int peer, Message reply);
+    }
+
+    // A read answering a request, a read ahead, or a write
+    private static class Job {
+        final int peer;
+        final long position;
+        final int piece;
+        final int offset;
+        final int length; // negative for the whole piece
+        final boolean ahead;
+        final Runnable write;
+
+        Job(int peer, long position, int piece, int offset, int length, boolean ahead, Runnable write) {
+            this.peer = peer;
+            this.position = position;
+            this.piece = piece;
+            this.offset = offset;
+            this.length = length;
+            this.ahead = ahead;
+            this.write = write;
+        }
+    }
+
+    // What one peer has been reading, to tell whether to read ahead for it
+    private static class Stream {
+        int last = -2; // piece asked for last
+        final HashSet<Integer> reading = new HashSet<Integer>(); // being read ahead
+        final LinkedHashMap<Integer, ByteBuffer> ahead = new LinkedHashMap<Integer, ByteBuffer>() {
+            protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+                return this.size() > READ_AHEAD + 1;
+            }
+        };
+    }
+
+    private final FileHandle fH;
+    private final int pieceSize;
+    private final Reader reader;
+    private final Thread[] threads;
+
+    // Queued jobs by position in the file, oldest first at each position, how many there are in all, and where the
+    // sweep is in the file
+    private final TreeMap<Long, ArrayList<Job>> queue = new TreeMap<Long, ArrayList<Job>>();
+    private final HashMap<Integer, Stream> streams = new HashMap<Integer, Stream>();
+    private int queued = 0;
+    private long head = 0;
+    private boolean closing = false;
+
+    public DiskIO(FileHandle fH, int pieceSize, int numThreads, Reader reader) {
+        this.fH = fH;
+        this.pieceSize = pieceSize;
+        this.reader = reader;
+        this.threads = new Thread[numThreads];
+        for(int i = 0; i < numThreads; i++) {
+            this.threads[i] = Threads.newThread(this, "disk-" + i, true);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Answer the request of peer for length bytes at offset of piece, or the whole piece if length is negative
+     */
+    public synchronized void read(int peer, int piece, int offset, int length) {
+        if(this.closing) {
+            return;
+        }
+        Stream stream = this.stream(peer);
+        boolean sequential = (piece == stream.last + 1 || piece == stream.last);
+        stream.last = piece;
+
+        this.add(new Job(peer, this.position(piece, offset), piece, offset, length, false, null));
+
+        if(sequential) {
+            for(int next = piece + 1; next <= piece + READ_AHEAD && next < this.fH.maxPiece(); next++) {
+                if(stream.ahead.containsKey(next) || stream.reading.contains(next) || !this.fH.hasPiece(next)) {
+                    continue;
+                }
+                stream.reading.add(next);
+                this.add(new Job(peer, this.position(next, 0), next, 0, -1, true, null));
+            }
+        }
+    }
+
+    /**
+     * Run task, which writes a block received from peer at position of the file
+     */
+    public synchronized void write(int peer, long position, Runnable task) {
+        this.add(new Job(peer, position, -1, 0, 0, false, task));
+    }
+
+    /**
+     * Take back the request of peer for the block at offset of piece, if it has not been read yet
+     *
+     * @return whether it was still queued
+     */
+    public synchronized boolean cancel(int peer, int piece, int offset) {
+        Long position = this.position(piece, offset);
+        ArrayList<Job> jobs = this.queue.get(position);
+        if(jobs == null) {
+            return false;
+        }
+        for(Iterator<Job> it = jobs.iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            if(job.peer == peer && job.write == null && !job.ahead && job.piece == piece && job.offset == offset) {
+                it.remove();
+                this.queued--;
+                if(jobs.isEmpty()) {
+                    this.queue.remove(position);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget the requests of peer that have not been read yet, and what was read ahead for it
+     */
+    public synchronized void drop(int peer) {
+        this.dropReads(peer);
+        this.streams.remove(peer);
+    }
+
+    /**
+     * Finish the writes, drop the reads, and stop the threads
+     */
+    public void close() {
+        synchronized(this) {
+            this.closing = true;
+            this.dropReads(null);
+            this.streams.clear();
+            this.notifyAll();
+        }
+        for(Thread t : this.threads) {
+            try {
+                t.join();
+            } catch(InterruptedException e) {
+                logger.warn("interrupted waiting for disk writes to finish");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run a thread
+     */
+    public void run() {
+        while(true) {
+            Job job;
+            synchronized(this) {
+                while(this.queued == 0 && !this.closing) {
+                    try {
+                        this.wait();
+                    } catch(InterruptedException e) {
+                        logger.debug("disk thread interrupted");
+                        return;
+                    }
+                }
+                if(this.queued == 0) {
+                    return;
+                }
+                job = this.next();
+            }
+
+            try {
+                if(job.write != null) {
+                    job.write.run();
+                } else if(job.ahead) {
+                    this.readAhead(job);
+                } else {
+                    this.answer(job);
+                }
+            } catch(RuntimeException e) {
+                logger.error("disk job for {} failed: {}", job.peer, e);
+            }
+        }
+    }
+
+    // Take the job at or after the head of the sweep, or the first one in the file if there is none. Call with
+    // the lock held, with something queued.
+    private Job next() {
+        Map.Entry<Long, ArrayList<Job>> at = this.queue.ceilingEntry(this.head);
+        if(at == null) {
+            at = this.queue.firstEntry();
+        }
+        ArrayList<Job> jobs = at.getValue();
+        Job job = jobs.remove(0);
+        if(jobs.isEmpty()) {
+            this.queue.remove(at.getKey());
+        }
+        this.queued--;
+        this.head = job.position;
+        return job;
+    }
+
+    private void answer(Job job) {
+        ByteBuffer contents;
+        synchronized(this) {
+            Stream stream = this.streams.get(job.peer);
+            contents = (stream == null) ? null : stream.ahead.get(job.piece);
+        }
+
+        Message reply;
+        if(contents == null) {
+            reply = this.reader.read(job.piece, job.offset, job.length);
+        } else if(job.length < 0) {
+            reply = Message.piece(job.piece, contents.duplicate());
+        } else if(job.offset < 0 || job.offset + job.length > contents.limit()) {
+            reply = null;
+        } else {
+            ByteBuffer block = contents.duplicate();
+            block.position(job.offset);
+            block.limit(job.offset + job.length);
+            reply = Message.block(job.piece, job.offset, block.slice());
+        }
+
+        if(contents != null && (job.length < 0 || job.offset + job.length >= contents.limit())) {
+            // Sent up to its end, it will not be asked for again
+            synchronized(this) {
+                Stream stream = this.streams.get(job.peer);
+                if(stream != null) {
+                    stream.ahead.remove(job.piece);
+                }
+            }
+        }
+
+        if(reply != null) {
+            this.reader.send(job.peer, reply);
+        }
+    }
+
+    private void readAhead(Job job) {
+        ByteBuffer contents = this.fH.getPieceContents(job.piece);
+        synchronized(this) {
+            Stream stream = this.streams.get(job.peer);
+            if(stream == null || !stream.reading.remove(job.piece)) {
+                // Dropped while it was read
+                return;
+            }
+            if(contents != null) {
+                stream.ahead.put(job.piece, contents);
+            }
+        }
+        logger.trace("read piece {} ahead for {}", job.piece, job.peer);
+    }
+
+    // Take the queued reads of peer, or of every peer if it is null, off the queue. Call with the lock held.
+    private void dropReads(Integer peer) {
+        for(Iterator<ArrayList<Job>> at = this.queue.values().iterator(); at.hasNext(); ) {
+            ArrayList<Job> jobs = at.next();
+            for(Iterator<Job> it = jobs.iterator(); it.hasNext(); ) {
+                Job job = it.next();
+                if(job.write == null && (peer == null || job.peer == peer)) {
+                    it.remove();
+                    this.queued--;
+                }
+            }
+            if(jobs.isEmpty()) {
+                at.remove();
+            }
+        }
+    }
+
+    // Call with the lock held
+    private void add(Job job) {
+        ArrayList<Job> jobs = this.queue.get(job.position);
+        if(jobs == null) {
+            jobs = new ArrayList<Job>(1);
+            this.queue.put(job.position, jobs);
+        }
+        jobs.add(job);
+        this.queued++;
+        this.notify();
+    }
+
+    // Call with the lock held
+    private Stream stream(int peer) {
+        Stream stream = this.streams.get(peer);
+        if(stream == null) {
+            stream = new Stream();
+            this.streams.put(peer, stream);
+        }
+        return stream;
+    }
+
+    private long position(int piece, int offset) {
+        return (long) piece * this.pieceSize + offset;
+    }
+}
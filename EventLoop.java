@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread that does the I/O of many channels with one Selector, instead of a
+ * thread per connection. Each channel is registered with a Handler, which is
+ * called on this thread when the channel is ready for what it is interested
+ * in.
+ *
+ * The selector and the keys are only touched on this thread. Other threads
+ * hand work to it with execute().
+ */
+public class EventLoop extends Thread {
+
+	private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+	/**
+	 * Reacts to a registered channel being ready
+	 */
+	public interface Handler {
+		void ready(SelectionKey key);
+	}
+
+	private final Selector selector;
+
+	// Work handed over from other threads, run before the next select
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	public EventLoop(String name) throws IOException {
+		super(name);
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Run task on this thread, as soon as it is done with what is ready now
+	 */
+	public void execute(Runnable task) {
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Make the channel non-blocking and register it. Must be called on this thread.
+	 */
+	public SelectionKey register(SelectableChannel ch, int ops, Handler handler) throws IOException {
+		ch.configureBlocking(false);
+		return ch.register(this.selector, ops, handler);
+	}
+
+	/**
+	 * Run the thread
+	 */
+	public void run() {
+		while (true) {
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				logger.error("{} failed to select, stopping: {}", getName(), e);
+				return;
+			}
+
+			Runnable task;
+			while ((task = this.tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.error("{} task failed: {}", getName(), e);
+				}
+			}
+
+			Iterator<SelectionKey> ready = this.selector.selectedKeys().iterator();
+			while (ready.hasNext()) {
+				SelectionKey key = ready.next();
+				ready.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				try {
+					((Handler) key.attachment()).ready(key);
+				} catch (RuntimeException e) {
+					logger.error("{} handler failed: {}", getName(), e);
+				}
+			}
+		}
+	}
+}
@@ -1,11 +1,11 @@
 import java.util.*;
 import java.util.Map;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.LoggerFactory;
 
@@ -13,24 +13,65 @@ import ch.qos.logback.classic.Level;
 
 /**
  * Class to serve as an interface to all file related tasks
+ *
+ * Called from all dispatcher and disk threads at once. The file is only read and written at explicit positions
+ * (see Storage), so pieces are read and written in parallel without a lock. Our own bookkeeping is split up so
+ * that threads working on different pieces do not wait for each other:
+ *
+ * - Which pieces we have, are storing, have started and have open blocks are AtomicBitSets, read and set without a
+ *   lock. Each bit only changes under the lock of its piece's stripe, so the bits of one piece change together.
+ * - The progress of a piece (blocks received and asked for) is guarded by the lock of its stripe, one of STRIPES
+ *   locks that pieces are spread over by index.
+ * - The blocks each peer has been asked for are guarded by that peer's list. A thread holding a stripe lock never
+ *   takes a list's lock, nor the other way round.
+ *
+ * Each neighbor's bit-field is guarded by its own BitSet, so have messages from different neighbors do not wait
+ * for each other or for choosing requests.
  */
 public class FileHandle {
 	private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
     private Integer myid;
     private String fileName;
-    private Integer fileSize;
+    private long fileSize;
     private Integer pieceSize;
     private Integer numPieces; // file_size/piece_size
-    BitSet myBitField;
-    HashMap<Integer, BitSet> peerBitFields;
-    HashMap<Integer, Integer> idxBeingRequested;
-    RandomAccessFile f;
+    AtomicBitSet myBitField;
+    // Number of pieces set in myBitField
+    private final AtomicInteger numHave = new AtomicInteger(0);
+    ConcurrentHashMap<Integer, BitSet> peerBitFields;
+    private int blockSize;
+    // Blocks received and asked for of pieces that are partly downloaded or being requested, null for the others,
+    // and which pieces those are. Each entry is guarded by the stripe of its piece.
+    Progress[] progress;
+    AtomicBitSet started;
+    // Pieces we do not have, not being stored, with a block that is neither received nor asked for. Empty in the
+    // endgame.
+    AtomicBitSet open;
+    // Pieces whose blocks are all received, but that are not durable yet, see WriteBehind
+    AtomicBitSet storing;
+    // Blocks each peer has been asked for, oldest first, each list guarded by itself
+    ConcurrentHashMap<Integer, ArrayList<Block>> blocksBeingRequested;
+    // Where the contents of the file are kept, and what received blocks are written through
+    Storage storage;
+    WriteBehind writeBehind;
+    // Told about pieces once they are durable
+    PieceListener pieceListener;
+    // Contents of pieces that are sent often, or null
+    PieceCache cache;
     Random rand;
-    HashMap<Integer, Double> bwScores;
+    ConcurrentHashMap<Integer, Double> bwScores;
 
-    // Data structure to apply a lock before self-inquiring which piece to
-    // request. We don't want more than one thread requesting same piece
-    Object lock;
+    // Locks guarding the bookkeeping of pieces, piece i is guarded by stripes[i % STRIPES]. We don't want more than
+    // one thread requesting the same block, nor recording the same piece twice.
+    private static final int STRIPES = 64;
+    private final Object[] stripes;
+
+    /**
+     * Is told about each received piece once it is durable enough to be announced
+     */
+    public interface PieceListener {
+        void pieceStored(int pieceIdx, int peerid);
+    }
 
     /**
      * Constructor
@@ -40,34 +81,52 @@ public class FileHandle {
      * @param haveFile
      *            A boolean if I have the complete file when process starts
      * @param fileName
-     *            The data file without path.
+     *            The data file without path, or the directory the files are in if there are several
      * @param fileSize
+     *            Bytes in the file, or in all the files together
      * @param pieceSize
+     * @param blockSize
+     *            Size of the blocks pieces are requested in, from peers that take block requests
+     * @param storage
+     *            How the file is kept: "file" for reads and writes through a FileChannel, "mapped" for a mapping
+     * @param durability
+     *            When received pieces count as stored: "sync", "batch" or "close", see WriteBehind
+     * @param syncPieces
+     *            Pieces written between forcing them to disk, in batch mode
+     * @param syncInterval
+     *            Most ms a written piece waits to be forced to disk, in batch mode
+     * @param files
+     *            The files in the directory fileName that the pieces span, in order, or null for the one file
      */
-    public FileHandle(Integer myid, boolean hasFile, String fileName, Integer fileSize,
-       Integer pieceSize, Set<Integer> peerids) {
+    public FileHandle(Integer myid, boolean hasFile, String fileName, long fileSize,
+       Integer pieceSize, Integer blockSize, Set<Integer> peerids, String storage,
+       String durability, int syncPieces, int syncInterval, List<MultiFileStorage.Entry> files) {
 
         this.myid = myid;
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
+        this.blockSize = Math.min(blockSize, pieceSize);
 
         // Set bit-field. All bits should be True or False
-        this.numPieces = (int) Math.ceil(this.fileSize / (double)this.pieceSize);
-        this.myBitField = new BitSet(this.numPieces);
-        this.myBitField.set(0, this.numPieces, hasFile);
+        this.numPieces = (int) ((this.fileSize + this.pieceSize - 1) / this.pieceSize);
+        this.myBitField = new AtomicBitSet(this.numPieces);
+        if (hasFile) {
+            this.myBitField.set(0, this.numPieces);
+        }
+        this.numHave.set(hasFile ? this.numPieces : 0);
 
-        // this.myBitField would contain some extra bits to align it to 4 or 
+        // this.myBitField would contain some extra bits to align it to 
         // 8-byte boundary. Set those bits to true. This is required, otherwise
         // the toByteArray function in Message.bitfield() is making the all-zero
         // BitSet to a size 0 BitSet
-        this.myBitField.set(this.numPieces, this.myBitField.size(), true);
+        this.myBitField.set(this.numPieces, this.myBitField.size());
 
         // log, but without extra bits
         logger.debug("Peer {} has initiated a file handler with bitfield set to {}",
-                myid, this.printableBitSet(this.myBitField));
+                myid, this.printableBitSet(this.myBitField.snapshot()));
 
-        this.peerBitFields = new HashMap<Integer, BitSet>();
+        this.peerBitFields = new ConcurrentHashMap<Integer, BitSet>();
 
         // Give default empty value to peer bitsets since they don't send if they're empty
         Iterator<Integer> iter = peerids.iterator();
@@ -80,62 +139,89 @@ public class FileHandle {
               peerid, printableBitSet(peerbits), myid); 
         }
 
-        this.idxBeingRequested = new HashMap<Integer, Integer>();
-        this.bwScores = new HashMap<Integer, Double>();
+        this.progress = new Progress[this.numPieces];
+        this.started = new AtomicBitSet(this.numPieces);
+        this.open = new AtomicBitSet(this.numPieces);
+        if (!hasFile) {
+            this.open.set(0, this.numPieces);
+        }
+        this.storing = new AtomicBitSet(this.numPieces);
+        this.blocksBeingRequested = new ConcurrentHashMap<Integer, ArrayList<Block>>();
+        this.bwScores = new ConcurrentHashMap<Integer, Double>();
 
-        this.lock = new Object();
+        this.stripes = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new Object();
+        }
 
         // Random object to generate random index to be requested
         this.rand = new Random(); // no seeding is necessary
 
         /* Open TheFile.dat */
         String fileNameWithPath = "peer_" + this.myid.toString() + File.separatorChar + this.fileName;
+        // Allocated on disk to enable random seeks, unless we have the file. Only the length is set, so the file
+        // is sparse and nothing is written until pieces come in.
+        WriteBehind.Mode mode = durability.equals("batch") ? WriteBehind.Mode.Batch
+                : durability.equals("close") ? WriteBehind.Mode.Close : WriteBehind.Mode.Sync;
+        boolean sync = (mode == WriteBehind.Mode.Sync);
         try {
-            f = new RandomAccessFile(fileNameWithPath, "rwd");
-        } catch (FileNotFoundException e) {
+            if (files != null) {
+                this.storage = new MultiFileStorage(fileNameWithPath, files, hasFile, sync);
+            } else if (storage.equals("mapped")) {
+                this.storage = new MappedStorage(fileNameWithPath, this.fileSize, this.pieceSize, hasFile, sync);
+            } else {
+                this.storage = new FileStorage(fileNameWithPath, this.fileSize, hasFile, sync);
+            }
+        } catch (IOException e) {
             logger.error("Failed to open: {}", fileNameWithPath);
             e.printStackTrace();
         }
-        // Allocate on disk to enable random seeks
-        if (hasFile == false) {
-            try {
-                f.setLength(this.fileSize);
-            } catch (IOException e) {
-                logger.error("Failed to allocate {} bytes memory", this.fileSize);
-                e.printStackTrace();
+        this.writeBehind = new WriteBehind(this.storage, mode, syncPieces, syncInterval, new WriteBehind.Durable() {
+            public void durable(int piece, int peerid) {
+                FileHandle.this.pieceStored(piece, peerid);
             }
-        }
+
+            public void lost(int piece) {
+                FileHandle.this.pieceLost(piece);
+            }
+        });
+    }
+
+    /**
+     * Serve pieces we have from cache, reading them into it as they are asked for
+     */
+    public void setPieceCache(PieceCache cache) {
+        this.cache = cache;
+    }
+
+    public PieceCache getPieceCache() {
+        return this.cache;
+    }
+
+    /**
+     * Set who is told about received pieces once they are durable
+     */
+    public void setPieceListener(PieceListener listener) {
+        this.pieceListener = listener;
     }
 
     /**
      * Peer-thread calls this function and use the returned bit-field (which represents my available pieces) to send to
-     * connected peer/s
+     * connected peer/s. Returns a copy, since pieces may be added while it is being sent.
      */
     public BitSet getBitfield() {
-        return this.myBitField;
+        return this.myBitField.snapshot();
     }
 
     /**
      * Checks to see if this peer's bitfield is empty or not
      */
     public Boolean isBitfieldEmpty() {
-
-       if (this.myBitField.previousSetBit(this.numPieces - 1) == -1) {
-          return true;
-       }
-
-       return false;
+        return this.numHave.get() == 0;
     } 
 
     public int getNumMissing() {
-        int missing = 0;
-        for(int i = 0; i < this.numPieces; i++) {
-            if(!this.myBitField.get(i)) {
-                missing += 1;
-            }
-        }
-
-        return missing;
+        return this.numPieces - this.numHave.get();
     }
 
     public boolean allComplete() {
@@ -147,11 +233,9 @@ public class FileHandle {
         boolean done = true;
         for(Map.Entry<Integer, BitSet> entry : peerBitFields.entrySet()) {
             BitSet bs = entry.getValue();
-            int missing = 0;
-            for(int i = 0; i < this.numPieces; i++) {
-                if(!bs.get(i)) {
-                    missing += 1;
-                }
+            int missing;
+            synchronized (bs) {
+                missing = this.numPieces - bs.get(0, this.numPieces).cardinality();
             }
             if(missing > 0) {
                 logger.debug("peer {} is missing {} pieces (self = {})", entry.getKey(), missing, myid);
@@ -164,27 +248,6 @@ public class FileHandle {
         return done;
     }
 
-    /**
-     * Whenever I receive a piece from peer, I update my own bit-field with this newly
-     * received piece
-     */
-    private Boolean updateBitfield(Integer pieceIndex) {
-        if(pieceIndex >= this.numPieces) {
-            logger.error("invalid piece given {} (max = {}) (self = {})", pieceIndex, this.numPieces, myid);
-        }
-        // Set the bit at pieceIndex to True
-        // lock the file handle
-        synchronized (lock) {
-            this.myBitField.set(pieceIndex);
-        }
-
-        logger.debug("Updating bitfield to have received piece {} (self={})",
-                pieceIndex, this.myid);
-
-        return checkAvailability();
-    }
-
-
     /**
      * Returns True if I still need more pieces. Returns False otherwise
      */
@@ -198,14 +261,19 @@ public class FileHandle {
      * be called only once, right after receiving the bit-field from peer.
      */
     public void setBitfield(Integer peerid, BitSet peerBitField) {
-        // Store peer's bit-field
-        this.peerBitFields.put(peerid, peerBitField);
+        // Store peer's bit-field, in the BitSet others may be holding the lock of
+        BitSet bits = this.peerBitFields.putIfAbsent(peerid, (BitSet) peerBitField.clone());
+        if (bits != null) {
+            synchronized (bits) {
+                bits.clear();
+                bits.or(peerBitField);
+            }
+        }
+        // TODO: Put proper bandwidth score
+        this.bwScores.put(peerid, 0.0);
 
         logger.debug("Storing the bitfield {} of peer {} (self={})",
                 this.printableBitSet(peerBitField), peerid, this.myid);
-
-        // TODO: Put proper bandwidth score
-        this.bwScores.put(peerid, 0.0);
     }
 
     /**
@@ -217,9 +285,12 @@ public class FileHandle {
         }
 
         BitSet peer_bits = this.peerBitFields.get(peerid);
-        peer_bits.set(piece);
-        logger.debug("Peer {} has been updated to have bit set {}.", peerid,
-                printableBitSet(peer_bits));
+        String printable;
+        synchronized (peer_bits) {
+            peer_bits.set(piece);
+            printable = printableBitSet(peer_bits);
+        }
+        logger.debug("Peer {} has been updated to have bit set {}.", peerid, printable);
 
     }
 
@@ -227,17 +298,28 @@ public class FileHandle {
      * Check whether this peer is interested in that piece
      */
     public boolean interestedInPiece(Integer piece) {
+        return !this.myBitField.get(piece) && !this.storing.get(piece);
+    }
 
-        return !this.myBitField.get(piece);
-
+    /**
+     * Whether we have the piece, durably
+     */
+    public boolean hasPiece(int piece) {
+        return this.myBitField.get(piece);
     }
 
     /**
-     * Get neighbor with id peerid's bitfield
+     * Get a copy of neighbor with id peerid's bitfield, or null if we do not know it
      */
     public BitSet getBitfield(Integer peerid) {
 
-        return this.peerBitFields.get(peerid);
+        BitSet bits = this.peerBitFields.get(peerid);
+        if (bits == null) {
+            return null;
+        }
+        synchronized (bits) {
+            return (BitSet) bits.clone();
+        }
 
     }
 
@@ -246,7 +328,10 @@ public class FileHandle {
      */
     public Boolean peerHasPiece(Integer peerid, Integer pc) {
 
-       return this.peerBitFields.get(peerid).get(pc);
+       BitSet bits = this.peerBitFields.get(peerid);
+       synchronized (bits) {
+           return bits.get(pc);
+       }
 
     }
 
@@ -257,17 +342,17 @@ public class FileHandle {
      */
     public BitSet interestingBits(Integer peerid) {
 
-        BitSet neighbor_bits = this.getBitfield(peerid);
+        // a copy of it
+        BitSet interesting_bits = this.getBitfield(peerid);
 
-        if (neighbor_bits == null) {
+        if (interesting_bits == null) {
             // don't have this neighbor's bits
             return new BitSet(this.numPieces);
         }
 
-        BitSet interesting_bits = (BitSet) neighbor_bits.clone();
-
-        // find if they have something we don't
-        interesting_bits.andNot(this.myBitField);
+        // find if they have something we don't, and are not storing already
+        interesting_bits.andNot(this.myBitField.snapshot());
+        interesting_bits.andNot(this.storing.snapshot());
 
         return interesting_bits;
     }
@@ -287,97 +372,628 @@ public class FileHandle {
     }
 
     /**
-     * Peer-thread calls this function. Function returns a piece-index that will be Peer-thread will request from
-     * connected peer with id peerid
+     * Part of a piece that is requested and received as a unit. Peers that do not speak the block messages are asked
+     * for whole pieces, which are blocks starting at 0 with the length of the piece.
      */
-    public Integer getPieceIndexToReceive(Integer peerid) {
-        /*
-         * Based on bit-field of peer, randomly returns a piece-index that the peer-thread has to request from connected
-         * peer
-         */
-        // In case the full file have been received, return -1 directly
-        Integer pieceIdx = -1;
+    public static class Block {
+        public final int piece;
+        public final int offset;
+        public final int length;
+        public final boolean wholePiece;
+
+        public Block(int piece, int offset, int length, boolean wholePiece) {
+            this.piece = piece;
+            this.offset = offset;
+            this.length = length;
+            this.wholePiece = wholePiece;
+        }
+
+        public String toString() {
+            return this.piece + "@" + this.offset + "+" + this.length;
+        }
+    }
+
+    /**
+     * Length of a piece, the last one may be shorter than the piece size
+     */
+    public int pieceLength(int pieceIdx) {
+        return (int) Math.min(this.pieceSize, this.fileSize - (long) pieceIdx * this.pieceSize);
+    }
+
+    /**
+     * Number of blocks a piece is split into
+     */
+    private int numBlocks(int pieceIdx) {
+        return (pieceLength(pieceIdx) + this.blockSize - 1) / this.blockSize;
+    }
+
+    private Block makeBlock(int pieceIdx, int blockIdx) {
+        int offset = blockIdx * this.blockSize;
+        int length = Math.min(this.blockSize, pieceLength(pieceIdx) - offset);
+        return new Block(pieceIdx, offset, length, numBlocks(pieceIdx) == 1);
+    }
+
+    /**
+     * What has come in of a piece, and how many requests are out for each of its blocks. Kept up to date as blocks
+     * are asked for, answered, taken back and received, so finding a free block never looks at the requests.
+     */
+    static class Progress {
+        final BitSet received;
+        final int[] asked;
+        int claimed; // blocks received or asked for
+
+        Progress(int numBlocks) {
+            this.received = new BitSet(numBlocks);
+            this.asked = new int[numBlocks];
+        }
+
+        // First block neither received nor asked for, -1 if there is none
+        int freeBlock() {
+            if (this.claimed == this.asked.length) {
+                return -1;
+            }
+            for (int b = this.received.nextClearBit(0); b < this.asked.length; b = this.received.nextClearBit(b + 1)) {
+                if (this.asked[b] == 0) {
+                    return b;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // Blocks of the piece that b covers
+    private int firstBlock(Block b) {
+        return b.offset / this.blockSize;
+    }
+
+    private int endBlock(Block b) {
+        return Math.min(numBlocks(b.piece), (b.offset + b.length + this.blockSize - 1) / this.blockSize);
+    }
+
+    // Lock guarding the bookkeeping of a piece
+    private Object stripe(int pieceIdx) {
+        return this.stripes[pieceIdx % STRIPES];
+    }
+
+    /**
+     * Note down that the blocks of b are being asked for. Call with the stripe of its piece held.
+     */
+    private void ask(Block b) {
+        Progress p = this.start(b.piece);
+        for (int k = firstBlock(b); k < endBlock(b); k++) {
+            if (p.asked[k]++ == 0 && !p.received.get(k)) {
+                p.claimed++;
+            }
+        }
+        if (p.claimed == p.asked.length) {
+            this.open.clear(b.piece);
+        }
+    }
+
+    /**
+     * The request for b was answered or taken back. Call with the stripe of its piece held.
+     */
+    private void unask(Block b) {
+        Progress p = this.progress[b.piece];
+        if (p == null) {
+            // Complete or lost since
+            return;
+        }
+        for (int k = firstBlock(b); k < endBlock(b); k++) {
+            if (p.asked[k] > 0 && --p.asked[k] == 0 && !p.received.get(k)) {
+                p.claimed--;
+            }
+        }
+        if (p.claimed < p.asked.length && !this.myBitField.get(b.piece) && !this.storing.get(b.piece)) {
+            this.open.set(b.piece);
+        }
+        if (p.claimed == 0) {
+            // Nothing of it in or asked for, it may be started afresh by anybody
+            this.progress[b.piece] = null;
+            this.started.clear(b.piece);
+        }
+    }
+
+    /**
+     * Progress of a piece, noting it down as started if it was not. Call with its stripe held.
+     */
+    private Progress start(int pieceIdx) {
+        Progress p = this.progress[pieceIdx];
+        if (p == null) {
+            p = new Progress(numBlocks(pieceIdx));
+            this.progress[pieceIdx] = p;
+            this.started.set(pieceIdx);
+        }
+        return p;
+    }
+
+    /**
+     * Peer-thread calls this function. Function returns the next block that the peer-thread will request from
+     * connected peer with id peerid, in addition to the ones it already has been asked for.
+     *
+     * Blocks of pieces that are already partly downloaded come first, so a piece gets assembled from blocks fetched
+     * in parallel from several peers. After that a random piece nobody is working on is started.
+     *
+     * Once every missing block has been asked for (endgame), a block some other peer has been asked for is returned,
+     * so the last pieces come from whichever peer is fastest. The other requests are cancelled once a copy is in (see
+     * cancelOtherRequests).
+     *
+     * @param wholePieces
+     *            The peer only takes whole-piece requests, so only a piece nobody is working on will do
+     * @return the block, or null if the peer has nothing we can ask for
+     */
+    public Block getBlockToReceive(Integer peerid, boolean wholePieces) {
 
         // Find what pieces that this peer has that we are interested in
         BitSet interesting_bits = this.interestingBits(peerid);
 
         // Has nothing interesting
-        if (interesting_bits.isEmpty()) return -1;
+        if (interesting_bits.isEmpty()) return null;
+
+        Block block = null;
+
+        if (!wholePieces) {
+            // Partly downloaded pieces with a free block
+            BitSet partial = (BitSet) interesting_bits.clone();
+            partial.and(this.open.snapshot());
+            partial.and(this.started.snapshot());
+            for (int i = partial.nextSetBit(0); i >= 0 && i < this.numPieces && block == null;
+                    i = partial.nextSetBit(i + 1)) {
+                synchronized (this.stripe(i)) {
+                    Progress p = this.progress[i];
+                    int b = (p == null) ? -1 : p.freeBlock();
+                    if (b >= 0) {
+                        block = this.makeBlock(i, b);
+                        this.ask(block);
+                    }
+                }
+            }
+        }
 
-        synchronized (lock) {
-            ArrayList<Integer> interesting_indices = new ArrayList<Integer>();
-            for (int i = 0; i < this.numPieces; i++) {
-                if(interesting_bits.get(i) && !this.idxBeingRequested.containsValue(i)) {
-                    interesting_indices.add(i);
+        if (block == null) {
+            // A random piece nobody is working on: the first one from a random place onwards
+            BitSet fresh = (BitSet) interesting_bits.clone();
+            fresh.and(this.open.snapshot());
+            fresh.andNot(this.started.snapshot());
+            fresh.clear(this.numPieces, Math.max(this.numPieces, fresh.length()));
+            int from = this.rand.nextInt(this.numPieces);
+            int i = fresh.nextSetBit(from);
+            if (i < 0) {
+                i = fresh.nextSetBit(0);
+            }
+            // Another thread may start it first, then try the next one
+            int candidates = fresh.cardinality();
+            for (int tried = 0; i >= 0 && block == null && tried < candidates; tried++) {
+                synchronized (this.stripe(i)) {
+                    if (this.progress[i] == null && this.open.get(i)) {
+                        // Received afresh, whatever failed to be written of it before no longer matters
+                        this.writeBehind.retry(i);
+                        if (wholePieces) {
+                            block = new Block(i, 0, pieceLength(i), true);
+                        } else {
+                            block = this.makeBlock(i, 0);
+                        }
+                        this.ask(block);
+                    }
+                }
+                i = fresh.nextSetBit(i + 1);
+                if (i < 0) {
+                    i = fresh.nextSetBit(0);
                 }
-            } 
-
-            if(interesting_indices.size() != 0) {
-                pieceIdx = interesting_indices.get(this.rand.nextInt(interesting_indices.size()));
-                // Note down that this pieceIdx is being requested from this peerid
-                // This is to make sure that no other peers are requested this piece
-                this.idxBeingRequested.put(peerid, pieceIdx);
-                logger.debug("Peer {} will request piece {} from {}", this.myid, pieceIdx, peerid);
-            } else {
-                logger.debug("Peer {} has no interesting pieces to request from {}", this.myid, peerid);
             }
         }
 
-        return pieceIdx;
+        if (block == null && this.open.isEmpty()) {
+            // Endgame: every missing block is received or asked for
+            block = this.endgameBlock(peerid, interesting_bits, wholePieces);
+        }
+
+        if (block != null) {
+            // Note down that this block is being requested from this peerid
+            // This is to make sure that no other peers are requested this block
+            ArrayList<Block> asked = this.requested(peerid);
+            synchronized (asked) {
+                asked.add(block);
+            }
+            logger.debug("Peer {} will request block {} from {}", this.myid, block, peerid);
+        } else {
+            logger.debug("Peer {} has no interesting pieces to request from {}", this.myid, peerid);
+        }
+
+        return block;
+    }
+
+    // Blocks peerid has been asked for
+    private ArrayList<Block> requested(Integer peerid) {
+        ArrayList<Block> asked = this.blocksBeingRequested.get(peerid);
+        if (asked == null) {
+            ArrayList<Block> added = new ArrayList<Block>();
+            asked = this.blocksBeingRequested.putIfAbsent(peerid, added);
+            if (asked == null) {
+                asked = added;
+            }
+        }
+        return asked;
+    }
+
+    /**
+     * A block another peer has been asked for and peerid has too, not received yet and not asked of peerid already,
+     * or null if there is none. It is noted down as asked for. Call without locks held.
+     */
+    private Block endgameBlock(Integer peerid, BitSet interesting_bits, boolean wholePieces) {
+        ArrayList<Block> mine = this.requested(peerid);
+        synchronized (mine) {
+            mine = new ArrayList<Block>(mine);
+        }
+        ArrayList<Block> candidates = new ArrayList<Block>();
+        for (Map.Entry<Integer, ArrayList<Block>> entry : this.blocksBeingRequested.entrySet()) {
+            if (entry.getKey().equals(peerid)) {
+                continue;
+            }
+            ArrayList<Block> theirs = entry.getValue();
+            synchronized (theirs) {
+                theirs = new ArrayList<Block>(theirs);
+            }
+            for (Block b : theirs) {
+                if (!interesting_bits.get(b.piece) || (wholePieces && !b.wholePiece)
+                        || indexOf(mine, b.piece, b.offset) >= 0 || indexOf(candidates, b.piece, b.offset) >= 0) {
+                    continue;
+                }
+                candidates.add(b);
+            }
+        }
+
+        while (!candidates.isEmpty()) {
+            Block block = candidates.remove(this.rand.nextInt(candidates.size()));
+            synchronized (this.stripe(block.piece)) {
+                Progress p = this.progress[block.piece];
+                if (p == null || p.received.get(block.offset / this.blockSize)) {
+                    // Came in meanwhile
+                    continue;
+                }
+                this.ask(block);
+            }
+            logger.debug("Peer {} is in endgame, also requesting block {} from {}", this.myid, block, peerid);
+            return block;
+        }
+        return null;
+    }
+
+    // Position of the block at offset of piece in blocks, -1 if it is not there
+    private static int indexOf(ArrayList<Block> blocks, int pieceIdx, int offset) {
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i).piece == pieceIdx && blocks.get(i).offset == offset) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * length bytes at offset of piece came in from peerid. Takes the requests other peers have for any of them off
+     * the books, so they can be cancelled.
+     *
+     * @return the peers and the blocks they were asked for
+     */
+    public ArrayList<AbstractMap.SimpleImmutableEntry<Integer, Block>> cancelOtherRequests(Integer peerid,
+            int pieceIdx, int offset, int length) {
+        ArrayList<AbstractMap.SimpleImmutableEntry<Integer, Block>> cancelled =
+                new ArrayList<AbstractMap.SimpleImmutableEntry<Integer, Block>>();
+        for (Map.Entry<Integer, ArrayList<Block>> entry : this.blocksBeingRequested.entrySet()) {
+            if (entry.getKey().equals(peerid)) {
+                continue;
+            }
+            synchronized (entry.getValue()) {
+                Iterator<Block> asked = entry.getValue().iterator();
+                while (asked.hasNext()) {
+                    Block b = asked.next();
+                    if (b.piece == pieceIdx && b.offset < offset + length && offset < b.offset + b.length) {
+                        asked.remove();
+                        cancelled.add(new AbstractMap.SimpleImmutableEntry<Integer, Block>(entry.getKey(), b));
+                    }
+                }
+            }
+        }
+        if (!cancelled.isEmpty()) {
+            synchronized (this.stripe(pieceIdx)) {
+                for (AbstractMap.SimpleImmutableEntry<Integer, Block> c : cancelled) {
+                    this.unask(c.getValue());
+                }
+            }
+        }
+        return cancelled;
     }
 
     /**
-     * This function is called in case the requested pieceIdx wasn't received because of timeout on the other peer's
-     * side. In such case remove the pieceIdx from the idxBeingRequested. Now, any connected peer may get asked for this
-     * pieceIdx
+     * This function is called in case the requested blocks won't be received, because the other peer choked us. In
+     * such case remove the peer's blocks from the blocksBeingRequested. Now, any connected peer may get asked for
+     * them
      * 
      * @param peerid
      */
-    public void cancelPieceIndexRequest(Integer peerid) {
-        this.idxBeingRequested.remove(peerid);
+    public void cancelBlockRequests(Integer peerid) {
+        ArrayList<Block> asked = this.blocksBeingRequested.get(peerid);
+        if (asked == null) {
+            return;
+        }
+        ArrayList<Block> taken;
+        synchronized (asked) {
+            taken = new ArrayList<Block>(asked);
+            asked.clear();
+        }
+        for (Block b : taken) {
+            synchronized (this.stripe(b.piece)) {
+                this.unask(b);
+            }
+        }
     }
 
     /**
-     * After receiving a piece from peer, the peer thread calls this function to write the acquired piece into disk
-     * 
+     * The request for the block at offset of piece won't be answered by the peer in time. Any connected peer may get
+     * asked for the block now.
+     */
+    public void cancelBlockRequest(Integer peerid, int pieceIdx, int offset) {
+        Block b = this.requestAnswered(peerid, pieceIdx, offset);
+        if (b != null) {
+            synchronized (this.stripe(pieceIdx)) {
+                this.unask(b);
+            }
+        }
+    }
+
+    /**
+     * Number of blocks the peer has been asked for and not sent yet
+     */
+    public int numRequested(Integer peerid) {
+        ArrayList<Block> asked = this.blocksBeingRequested.get(peerid);
+        if (asked == null) {
+            return 0;
+        }
+        synchronized (asked) {
+            return asked.size();
+        }
+    }
+
+    /**
+     * The peer answered its request for the block at offset of piece (whether or not we could use the answer). Takes
+     * it off the peer's list, the caller unasks it.
+     *
+     * @return the request, or null if it was not on the list
+     */
+    private Block requestAnswered(Integer peerid, int pieceIdx, int offset) {
+        ArrayList<Block> asked = this.blocksBeingRequested.get(peerid);
+        if (asked == null) {
+            return null;
+        }
+        synchronized (asked) {
+            int i = indexOf(asked, pieceIdx, offset);
+            return (i >= 0) ? asked.remove(i) : null;
+        }
+    }
+
+    /**
+     * Whether length bytes at offset are a block we would take for the piece. A whole piece is accepted as a block at
+     * offset 0 with the length of the piece.
+     */
+    private boolean isValidBlock(Integer pieceIdx, int offset, int length) {
+        if (pieceIdx < 0 || pieceIdx >= this.numPieces) {
+            logger.error("Cannot receive piece {}, out of range (max = {}, self = {})", pieceIdx, this.numPieces, myid);
+            return false;
+        }
+
+        int pieceLen = pieceLength(pieceIdx);
+        boolean whole = (offset == 0 && length == pieceLen);
+        boolean block = (offset >= 0 && offset < pieceLen && offset % this.blockSize == 0
+                && length == Math.min(this.blockSize, pieceLen - offset));
+        if (!whole && !block) {
+            logger.error("Block {}@{} is wrong size (actual = {}, piece = {}, block = {}, self = {})", pieceIdx,
+                    offset, length, pieceLen, blockSize, myid);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * After receiving a block from peer, the peer thread calls this function to write it into disk. Unless every
+     * write is synced, it is written behind (see WriteBehind). Once the piece is complete and durable, the piece
+     * listener is told.
+     *
      * @param pieceIdx
-     * @param piece
-     *            Byte-array holding piece inside it
-     * @param pieceLen
-     *            Length of piece. For the last pieceIdx this parameter should specify the length of valid bytes inside
-     *            piece
+     * @param offset
+     *            Where the block starts in the piece
+     * @param block
+     *            Buffer holding the block between its position and limit. The buffer's position is left as it was.
      */
-    public synchronized Boolean writePiece(Integer pieceIdx, byte[] piece, Integer peerid) {
-        idxBeingRequested.remove(pieceIdx);
+    public void writeBlock(Integer pieceIdx, int offset, ByteBuffer block, Integer peerid) {
+        int blockLen = block.remaining();
+        // The request stays on the books until the block is recorded, so nobody gets asked for it meanwhile
+        if (!this.canReceive(pieceIdx, offset, blockLen)) {
+            this.cancelBlockRequest(peerid, pieceIdx, offset);
+            return;
+        }
         try {
-            if(piece.length <= 0) {
-                logger.error("Cannot write 0-length piece at index {}", pieceIdx);
-                return false;
+            long position = (long) pieceIdx * this.pieceSize + offset;
+            if(position + blockLen > this.fileSize) {
+                logger.error("Cannot write piece {}, {} bytes is too large", pieceIdx, blockLen);
+                this.cancelBlockRequest(peerid, pieceIdx, offset);
+                return;
             }
-            if(piece.length != this.pieceSize && pieceIdx != numPieces - 1) {
-                logger.error("Piece {} is wrong size (actual = {}, expected = {}, self = {})", pieceIdx, piece.length, pieceSize, myid);
-                return false;
-            }
-            if(pieceIdx * this.pieceSize + piece.length > f.length()) {
-                logger.error("Cannot write piece {}, {} bytes is too large", pieceIdx, piece.length);
+            this.writeBehind.write(pieceIdx, position, block);
+        } catch (IOException e) {
+            logger.error("Failed writing {} of length {}", pieceIdx, blockLen);
+            e.printStackTrace();
+            this.cancelBlockRequest(peerid, pieceIdx, offset);
+            return; // this piece failed to write, we still need at least it again
+        }
+
+        this.recordBlock(pieceIdx, offset, blockLen, peerid);
+    }
+
+    /**
+     * Is called by the peer-thread as a piece arrives, after its index has been read. If the piece can be taken, the
+     * returned message refers to the piece's region of the file, and the reader transfers the contents from the
+     * socket straight into it (see Message.receiveContents), so they never pass through the heap.
+     *
+     * @param pieceIdx
+     * @param pieceLen
+     *            Number of content bytes that follow the index
+     * @return Piece message referring to the region to write, to be committed with commitBlock once written, or null
+     *         if the piece cannot be taken (out of range, wrong size or already held)
+     */
+    public Message acceptPiece(Integer pieceIdx, int pieceLen) {
+        if (!this.canReceive(pieceIdx, 0, pieceLen)) {
+            return null;
+        }
+
+        return this.storage.storedPiece(pieceIdx, (long) pieceIdx * this.pieceSize, pieceLen);
+    }
+
+    /**
+     * Same as acceptPiece, for a block once its index and offset have been read
+     */
+    public Message acceptBlock(Integer pieceIdx, int offset, int blockLen) {
+        if (!this.canReceive(pieceIdx, offset, blockLen)) {
+            return null;
+        }
+
+        return this.storage.storedBlock(pieceIdx, offset, (long) pieceIdx * this.pieceSize + offset, blockLen);
+    }
+
+    private boolean canReceive(Integer pieceIdx, int offset, int length) {
+        if (!this.isValidBlock(pieceIdx, offset, length)) {
+            return false;
+        }
+
+        synchronized (this.stripe(pieceIdx)) {
+            Progress p = this.progress[pieceIdx];
+            if (this.myBitField.get(pieceIdx) || this.storing.get(pieceIdx) || (p != null && p.received.get(offset / this.blockSize)
+                    && length <= this.blockSize)) {
+                logger.debug("Already have block {}@{}, not receiving it into the file (self = {})", pieceIdx,
+                        offset, myid);
                 return false;
             }
-            f.seek(pieceIdx * this.pieceSize);
-            f.write(piece);
+        }
+        return true;
+    }
+
+    /**
+     * After a block (or whole piece) has been written to the file, the peer thread calls this function to record it.
+     * Once all blocks of the piece are in and durable, the piece is added to the bit-field.
+     *
+     * @param pieceIdx
+     * @param offset
+     * @param length
+     * @param peerid
+     *            Peer the block came from
+     * @param received
+     *            The message from acceptPiece or acceptBlock it was received into
+     */
+    public void commitBlock(Integer pieceIdx, int offset, int length, Integer peerid, Message received) {
+        try {
+            this.storage.stored((long) pieceIdx * this.pieceSize + offset, length, received);
         } catch (IOException e) {
-            logger.error("Failed writing {} of length {}", pieceIdx, piece.length);
+            logger.error("Failed storing {}@{} of length {}", pieceIdx, offset, length);
             e.printStackTrace();
-            return false; // this piece failed to write, we still need at least it again
+            this.cancelBlockRequest(peerid, pieceIdx, offset);
+            return; // this block failed to write, we still need it again
+        }
+        this.recordBlock(pieceIdx, offset, length, peerid);
+    }
+
+    // Record a block that is in storage or queued to be written, see commitBlock
+    private void recordBlock(Integer pieceIdx, int offset, int length, Integer peerid) {
+        boolean last;
+        Block answered = this.requestAnswered(peerid, pieceIdx, offset);
+        synchronized (this.stripe(pieceIdx)) {
+            if (answered != null) {
+                this.unask(answered);
+            }
+
+            if (this.myBitField.get(pieceIdx) || this.storing.get(pieceIdx)) {
+                // Somebody else already completed it
+                return;
+            }
+
+            int n = numBlocks(pieceIdx);
+            Progress p = this.start(pieceIdx);
+            int end = Math.min(n, (offset + length + this.blockSize - 1) / this.blockSize);
+            for (int k = offset / this.blockSize; k < end; k++) {
+                if (!p.received.get(k)) {
+                    p.received.set(k);
+                    if (p.asked[k] == 0) {
+                        p.claimed++;
+                    }
+                }
+            }
+            if (p.claimed == n) {
+                this.open.clear(pieceIdx);
+            }
+
+            int have = p.received.cardinality();
+            if (have < n) {
+                logger.debug("wrote block {}@{}, {} of {} blocks of the piece received (self = {})", pieceIdx,
+                        offset, have, n, myid);
+                return;
+            }
+            this.progress[pieceIdx] = null;
+            this.started.clear(pieceIdx);
+            this.storing.set(pieceIdx);
+
+            // Whether nothing else is missing, so it should not wait for a batch
+            last = this.numHave.get() + this.storing.cardinality() >= this.numPieces;
+        }
+
+        logger.debug("wrote piece {}, waiting for it to be durable (self = {})", pieceIdx, myid);
+        this.writeBehind.completed(pieceIdx, peerid, last);
+    }
+
+    /**
+     * Bookkeeping once the contents of a piece are durable: add it to my bit-field and tell the listener
+     */
+    private void pieceStored(int pieceIdx, int peerid) {
+        int has;
+        synchronized (this.stripe(pieceIdx)) {
+            // Counted before storing is cleared, so it never looks missing in between
+            boolean added = this.myBitField.set(pieceIdx);
+            has = added ? this.numHave.incrementAndGet() : this.numHave.get();
+            this.storing.clear(pieceIdx);
+            if (!added) {
+                return;
+            }
         }
 
-        logger.debug("wrote piece {} successfully (self = {})", pieceIdx, myid);
-        
         logger.info("Peer {} has downloaded the piece {} from {}. "
         		+ "Now the number of pieces it has is {}.", 
-        		this.myid, pieceIdx, peerid, (this.numPieces - this.getNumMissing() + 1));        
-        
-        // Add this piece to my bit-field
-        this.updateBitfield(pieceIdx);
+        		this.myid, pieceIdx, peerid, has);
+
+        if (this.pieceListener != null) {
+            this.pieceListener.pieceStored(pieceIdx, peerid);
+        }
+    }
+
+    /**
+     * Writing the piece failed, it has to be received again
+     */
+    private void pieceLost(int pieceIdx) {
+        synchronized (this.stripe(pieceIdx)) {
+            this.storing.clear(pieceIdx);
+            this.open.set(pieceIdx);
+        }
+        logger.error("Failed writing piece {}, it will be requested again (self = {})", pieceIdx, myid);
+    }
+
+    /**
+     * Whether length bytes at offset lie within the piece
+     */
+    private boolean isInPiece(Integer pieceIdx, int offset, int length) {
+        if (pieceIdx < 0 || pieceIdx >= this.numPieces) {
+            logger.error("Cannot send piece {}, out of range (max = {})", pieceIdx, this.numPieces);
+            return false;
+        }
+        if (offset < 0 || length <= 0 || (long) offset + length > pieceLength(pieceIdx)) {
+            logger.error("Cannot send {} bytes at {} of piece {}, out of range", length, offset, pieceIdx);
+            return false;
+        }
         return true;
     }
 
@@ -385,24 +1001,143 @@ public class FileHandle {
      * Is called by the peer-thread.
      * 
      * @param pieceIdx
-     * @return Length of piece that was read from file. In case of last-piece of file, 
-     *         the length may be lesser than maxPieceLen.
+     * @return Contents of the piece. In case of last-piece of file, the length may be lesser than the piece size.
      */
     public byte [] getPieceToSend(Integer pieceIdx) {
-        Integer pieceLen = 0;
-        Integer maxPieceLen = this.pieceSize;
-        byte [] piece = new byte[maxPieceLen];
+        if (pieceIdx < 0 || pieceIdx >= this.numPieces) {
+            logger.error("Cannot send piece {}, out of range (max = {})", pieceIdx, this.numPieces);
+            return null;
+        }
+        return this.getBlockToSend(pieceIdx, 0, pieceLength(pieceIdx));
+    }
+
+    /**
+     * Is called by the peer-thread to read part of a piece
+     *
+     * @return Contents of the block, or null if it could not be read
+     */
+    public byte [] getBlockToSend(Integer pieceIdx, int offset, int length) {
+        if (!this.isInPiece(pieceIdx, offset, length)) {
+            return null;
+        }
+
+        byte [] block = new byte[length];
+        ByteBuffer cached = this.cachedPiece(pieceIdx);
+        if (cached != null) {
+            cached.position(offset);
+            cached.get(block);
+            return block;
+        }
+
+        ByteBuffer dst = ByteBuffer.wrap(block);
+        long position = (long) pieceIdx * this.pieceSize + offset;
 
         try {
-            f.seek(pieceIdx * this.pieceSize);
-            pieceLen = f.read(piece);
+            // Positional read, does not disturb other readers and writers
+            this.storage.read(position, dst);
         } catch (IOException e) {
             logger.error("Failed reading piece {} to send", pieceIdx);
             e.printStackTrace();
             return null;
         }
 
-        return Arrays.copyOfRange(piece, 0, pieceLen);
+        return Arrays.copyOfRange(block, 0, dst.position());
+    }
+
+    /**
+     * Contents of a piece we have, as a read-only buffer, from the cache if there is one
+     *
+     * @return the contents, or null if we do not have the piece or it could not be read
+     */
+    public ByteBuffer getPieceContents(Integer pieceIdx) {
+        if (pieceIdx < 0 || pieceIdx >= this.numPieces || !this.hasPiece(pieceIdx)) {
+            return null;
+        }
+        ByteBuffer cached = this.cachedPiece(pieceIdx);
+        if (cached != null) {
+            return cached;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(pieceLength(pieceIdx));
+        try {
+            this.storage.read((long) pieceIdx * this.pieceSize, buf);
+        } catch (IOException e) {
+            logger.error("Failed reading piece {} (self = {}): {}", pieceIdx, myid, e);
+            return null;
+        }
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * Is called by the peer-thread when pieces are sent without copying. Nothing is read here, the returned
+     * message points at the piece's region of the file and is transferred to the socket when it is sent.
+     *
+     * @param pieceIdx
+     * @return Piece message for pieceIdx, or null if there is no such piece
+     */
+    public Message getPieceRegionToSend(Integer pieceIdx) {
+        if(pieceIdx < 0 || pieceIdx >= this.numPieces) {
+            logger.error("Cannot send piece {}, out of range (max = {})", pieceIdx, this.numPieces);
+            return null;
+        }
+
+        ByteBuffer cached = this.cachedPiece(pieceIdx);
+        if (cached != null) {
+            return Message.piece(pieceIdx, cached);
+        }
+        return this.storage.piece(pieceIdx, (long) pieceIdx * this.pieceSize, pieceLength(pieceIdx));
+    }
+
+    /**
+     * Same as getPieceRegionToSend, for part of a piece
+     *
+     * @return Block message, or null if the block is not within the piece
+     */
+    public Message getBlockRegionToSend(Integer pieceIdx, int offset, int length) {
+        if (!this.isInPiece(pieceIdx, offset, length)) {
+            return null;
+        }
+
+        ByteBuffer cached = this.cachedPiece(pieceIdx);
+        if (cached != null) {
+            cached.position(offset);
+            cached.limit(offset + length);
+            return Message.block(pieceIdx, offset, cached.slice());
+        }
+        return this.storage.block(pieceIdx, offset, (long) pieceIdx * this.pieceSize + offset, length);
+    }
+
+    /**
+     * Contents of a piece we have, from the cache, read into it first if it is not there yet. Null if there is no
+     * cache, the cache would not keep it, we do not have the piece, or it could not be read. The buffer is read-only and ours alone to move
+     * about in.
+     */
+    private ByteBuffer cachedPiece(int pieceIdx) {
+        if (this.cache == null || !this.myBitField.get(pieceIdx)) {
+            return null;
+        }
+
+        ByteBuffer contents = this.cache.get(pieceIdx);
+        if (contents != null) {
+            return contents;
+        }
+        if (!this.cache.admits(pieceIdx, pieceLength(pieceIdx))) {
+            // Not kept anyway, sent from storage without a cache buffer
+            return null;
+        }
+        ByteBuffer buf = this.cache.allocate(pieceLength(pieceIdx));
+        try {
+            this.storage.read((long) pieceIdx * this.pieceSize, buf);
+        } catch (IOException e) {
+            logger.error("Failed reading piece {} into the cache (self = {}): {}", pieceIdx, myid, e);
+            return null;
+        }
+        if (buf.hasRemaining()) {
+            return null;
+        }
+        buf.flip();
+        return this.cache.put(pieceIdx, buf);
     }
 
     /**
@@ -451,11 +1186,16 @@ public class FileHandle {
     }
 
     public String printableBitfield() {
-        return printableBitSet(this.myBitField);
+        return printableBitSet(this.getBitfield());
     }
 
+    /**
+     * Write what is left to write, and close the file
+     */
     public void close() throws IOException {
-        this.f.getFD().sync();
-        this.f.close();
+        if (this.cache != null) {
+            logger.info("Peer {} piece cache: {}", this.myid, this.cache);
+        }
+        this.writeBehind.close();
     }
 }
@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the contents in a file, optionally opened so that every write is on disk before it returns. Reads and
+ * writes are positional, and pieces are sent and received with transferTo and transferFrom.
+ */
+class FileStorage implements Storage {
+
+    private final RandomAccessFile f;
+    private final FileChannel channel;
+
+    /**
+     * Open the file at path, making it size bytes long unless it is complete already
+     *
+     * @param sync whether every write should be on disk before it returns
+     */
+    public FileStorage(String path, long size, boolean complete, boolean sync) throws IOException {
+        this.f = new RandomAccessFile(path, sync ? "rwd" : "rw");
+        if(!complete) {
+            this.f.setLength(size);
+        }
+        this.channel = this.f.getChannel();
+    }
+
+    public void write(long position, ByteBuffer src) throws IOException {
+        ByteBuffer buf = src.duplicate();
+        while(buf.hasRemaining()) {
+            this.channel.write(buf, position + buf.position() - src.position());
+        }
+    }
+
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        // The only one using the channel's own position
+        synchronized(this) {
+            this.channel.position(position);
+            ByteBuffer last = srcs[srcs.length - 1];
+            while(last.hasRemaining()) {
+                this.channel.write(srcs);
+            }
+        }
+    }
+
+    public void read(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while(dst.hasRemaining()) {
+            if(this.channel.read(dst, position + dst.position() - start) < 0) {
+                break;
+            }
+        }
+    }
+
+    public Message piece(int index, long position, int length) {
+        return Message.piece(index, this.channel, position, length);
+    }
+
+    public Message block(int index, int offset, long position, int length) {
+        return Message.block(index, offset, this.channel, position, length);
+    }
+
+    public Message storedPiece(int index, long position, int length) {
+        return Message.storedPiece(index, this.channel, position, length);
+    }
+
+    public Message storedBlock(int index, int offset, long position, int length) {
+        return Message.storedBlock(index, offset, this.channel, position, length);
+    }
+
+    public void stored(long position, int length, Message received) {
+        // Written through the channel
+    }
+
+    public void force() throws IOException {
+        this.channel.force(false);
+    }
+
+    public void close() throws IOException {
+        this.f.getFD().sync();
+        this.f.close();
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the contents in a file mapped into memory. One mapping holds less than 2 GB, so the file is mapped in
+ * windows of up to MAX_WINDOW bytes, each a whole number of pieces so no piece spans two of them. Pieces are sent
+ * as read-only slices of the mapping, and received pieces are read from the socket straight into it.
+ *
+ * Writes reach the file whenever the OS gets to it, unless it was opened to sync them. force() writes out the
+ * windows written to since the last time, together.
+ */
+class MappedStorage implements Storage {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    // Most bytes mapped by one window
+    private static final long MAX_WINDOW = 1L << 30;
+
+    private final RandomAccessFile f;
+    private final long window; // bytes per window
+    private final MappedByteBuffer[] windows;
+
+    // Whether to force every write, and the windows written to since they were last forced
+    private final boolean sync;
+    private final boolean[] dirty;
+
+    /**
+     * Map the file at path, making it size bytes long unless it is complete already
+     *
+     * @param sync whether every write should be on disk before it returns
+     */
+    public MappedStorage(String path, long size, int pieceSize, boolean complete, boolean sync) throws IOException {
+        this.f = new RandomAccessFile(path, "rw");
+        this.sync = sync;
+        if(!complete) {
+            this.f.setLength(size);
+        }
+        this.window = Math.max(1, MAX_WINDOW / pieceSize) * pieceSize;
+
+        FileChannel channel = this.f.getChannel();
+        this.windows = new MappedByteBuffer[(int) ((size + this.window - 1) / this.window)];
+        for(int i = 0; i < this.windows.length; i++) {
+            long start = i * this.window;
+            this.windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(this.window, size - start));
+        }
+        this.dirty = new boolean[this.windows.length];
+        logger.debug("mapped {} in {} windows of {} bytes", path, this.windows.length, this.window);
+    }
+
+    public void write(long position, ByteBuffer src) throws IOException {
+        ByteBuffer buf = src.duplicate();
+        while(buf.hasRemaining()) {
+            ByteBuffer dst = this.slice(position + buf.position() - src.position(), buf.remaining());
+            ByteBuffer chunk = buf.duplicate();
+            chunk.limit(chunk.position() + dst.remaining());
+            dst.put(chunk);
+            buf.position(chunk.position());
+        }
+        this.dirty(position, src.remaining());
+    }
+
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        long at = position;
+        for(ByteBuffer src : srcs) {
+            this.write(at, src);
+            at += src.remaining();
+            src.position(src.limit());
+        }
+    }
+
+    public void read(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while(dst.hasRemaining()) {
+            ByteBuffer src = this.slice(position + dst.position() - start, dst.remaining());
+            if(!src.hasRemaining()) {
+                break;
+            }
+            dst.put(src);
+        }
+    }
+
+    public Message piece(int index, long position, int length) {
+        return Message.piece(index, this.slice(position, length).asReadOnlyBuffer());
+    }
+
+    public Message block(int index, int offset, long position, int length) {
+        return Message.block(index, offset, this.slice(position, length).asReadOnlyBuffer());
+    }
+
+    public Message storedPiece(int index, long position, int length) {
+        return Message.piece(index, this.slice(position, length));
+    }
+
+    public Message storedBlock(int index, int offset, long position, int length) {
+        return Message.block(index, offset, this.slice(position, length));
+    }
+
+    public void stored(long position, int length, Message received) {
+        this.dirty(position, length);
+    }
+
+    // length bytes at position were written, force them now or with the next force()
+    private void dirty(long position, int length) {
+        if(length <= 0) {
+            return;
+        }
+        synchronized(this) {
+            for(long i = position / this.window; i <= (position + length - 1) / this.window; i++) {
+                this.dirty[(int) i] = true;
+            }
+        }
+        if(this.sync) {
+            this.force();
+        }
+    }
+
+    /**
+     * Force out the windows written to since the last time
+     */
+    public void force() {
+        boolean[] forcing;
+        synchronized(this) {
+            forcing = this.dirty.clone();
+            java.util.Arrays.fill(this.dirty, false);
+        }
+        for(int i = 0; i < forcing.length; i++) {
+            if(forcing[i]) {
+                this.windows[i].force();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        this.force();
+        this.f.close();
+    }
+
+    // Up to length bytes at position, as far as the window holding position goes
+    private ByteBuffer slice(long position, int length) {
+        int i = (int) (position / this.window);
+        if(i >= this.windows.length) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer buf = this.windows[i].duplicate();
+        int at = (int) (position - i * this.window);
+        buf.position(Math.min(at, buf.limit()));
+        buf.limit(Math.min(buf.limit(), buf.position() + length));
+        return buf.slice();
+    }
+}
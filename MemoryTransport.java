@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connects to neighbors running in the same process, without sockets. A listening peer is found by its port, and
+ * a connection is a pair of links, each with a lock-free queue of the messages sent to its end. A thread per link
+ * takes them off and hands them to its manager, so messages go from one peer's handlers to another's without being
+ * encoded.
+ *
+ * There is no handshake: both ends are established as soon as the connection is made, with every extension. Pieces
+ * kept in a file are read into memory as they are sent, so the receiver never sees the sender's file.
+ */
+class MemoryTransport implements Transport {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    // Transports listening in this process, by port
+    private static final ConcurrentHashMap<Integer, MemoryTransport> listening =
+        new ConcurrentHashMap<Integer, MemoryTransport>();
+
+    private final ConnectionManager manager;
+    private volatile int port = -1;
+
+    public MemoryTransport(ConnectionManager manager) {
+        this.manager = manager;
+    }
+
+    public void listen(int port) throws IOException {
+        if(listening.putIfAbsent(port, this) != null) {
+            throw new BindException("port " + port + " is already in use in this process");
+        }
+        this.port = port;
+    }
+
+    public void stopListening() {
+        listening.remove(this.port, this);
+    }
+
+    public Transport.Link connect(NeighborPeer peer) {
+        int myid = this.manager.myid();
+        logger.info("Peer {} makes a connection to Peer {}", myid, peer.getID());
+
+        MemoryLink ours = new MemoryLink(this.manager, peer);
+        MemoryTransport remote = listening.get(peer.getPort());
+        if(remote == null) {
+            this.manager.failed(peer, new ConnectException("nothing listening on port " + peer.getPort()));
+            return ours;
+        }
+
+        // They know us by their configuration, like from a handshake
+        NeighborPeer self = remote.manager.neighbor(myid);
+        if(self == null) {
+            self = new NeighborPeer(myid, this.port, "localhost");
+        }
+        MemoryLink theirs = new MemoryLink(remote.manager, self);
+        peer.setExtensions(NeighborPeer.EXT_SUPPORTED);
+        self.setExtensions(NeighborPeer.EXT_SUPPORTED);
+        ours.remote = theirs;
+        theirs.remote = ours;
+        logger.info("Peer {} is connected from Peer {}", peer.getID(), myid);
+
+        theirs.start();
+        ours.start();
+        remote.manager.established(theirs, self, false);
+        this.manager.established(ours, peer, true);
+        return ours;
+    }
+
+    /**
+     * One end of a connection in this process
+     */
+    static class MemoryLink implements Transport.Link, Runnable {
+        private final ConnectionManager manager;
+        private final NeighborPeer peer;
+        private MemoryLink remote; // the other end, set before either is started
+
+        // Messages sent to this end, and the thread handing them to the manager
+        private final ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+        private volatile Thread thread = null;
+
+        // Whether either end closed. Messages already sent are still handed on.
+        private volatile boolean closed = false;
+
+        // Bytes of pieces sent from this end that the other has not taken yet, and since when (ms) that was over
+        // the limit, 0 if it is not
+        private final AtomicLong bulkBytes = new AtomicLong(0);
+        private final long limit;
+        private volatile long fullSince = 0;
+
+        MemoryLink(ConnectionManager manager, NeighborPeer peer) {
+            this.manager = manager;
+            this.peer = peer;
+            this.limit = manager.sendQueueLimit();
+        }
+
+        void start() {
+            this.thread = Threads.newThread(this, String.format("memory-%d", this.peer.getID()), false);
+            this.thread.start();
+        }
+
+        public void send(Message msg) {
+            if(this.closed) {
+                logger.debug("connection to peer {} is closed, dropping {} message (self = {})",
+                    this.peer.getID(), msg.type, this.manager.myid());
+                return;
+            }
+            try {
+                msg = msg.inMemory();
+            } catch(IOException e) {
+                logger.error("failed to read {} for peer {}: {} (self = {})", msg.type, this.peer.getID(), e,
+                    this.manager.myid());
+                return;
+            }
+            if(isBulk(msg)) {
+                long queued = this.bulkBytes.addAndGet(msg.len);
+                if(queued >= this.limit && this.fullSince == 0) {
+                    this.fullSince = System.currentTimeMillis();
+                }
+            }
+            this.remote.inbox.add(msg);
+            LockSupport.unpark(this.remote.thread);
+        }
+
+        public boolean cancel(int index, int offset) {
+            for(Message msg : this.remote.inbox) {
+                if(!isBulk(msg)) {
+                    continue;
+                }
+                Message.PiecePayload payload = (Message.PiecePayload) msg.getPayload();
+                if(payload.index == index && payload.offset == offset && this.remote.inbox.remove(msg)) {
+                    this.taken(msg);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isFull() {
+            return this.fullSince != 0;
+        }
+
+        public long fullFor(long now) {
+            long since = this.fullSince;
+            return (since == 0) ? 0 : Math.max(1, now - since);
+        }
+
+        public long queuedBytes() {
+            return this.bulkBytes.get();
+        }
+
+        public void abort() {
+            // Established as soon as it is made, or never
+        }
+
+        public void drop() {
+            this.close();
+        }
+
+        public void close() {
+            this.closed = true;
+            this.remote.closed = true;
+            LockSupport.unpark(this.thread);
+            LockSupport.unpark(this.remote.thread);
+        }
+
+        /**
+         * Run the thread
+         */
+        public void run() {
+            while(true) {
+                Message msg = this.inbox.poll();
+                if(msg != null) {
+                    if(isBulk(msg)) {
+                        this.remote.taken(msg);
+                    }
+                    this.manager.received(this.peer.getID(), msg);
+                } else if(this.closed) {
+                    break;
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            logger.debug("connection with peer {} closed (self = {})", this.peer.getID(), this.manager.myid());
+            this.manager.closed(this.peer.getID(), this);
+        }
+
+        // A piece sent from this end was taken by the other, see whether the queue drained
+        private void taken(Message msg) {
+            long queued = this.bulkBytes.addAndGet(-msg.len);
+            if(this.fullSince != 0 && queued <= this.limit / 2) {
+                this.fullSince = 0;
+                this.manager.drained(this.peer.getID());
+            }
+        }
+
+        private static boolean isBulk(Message msg) {
+            return msg.type == Message.Type.Piece || msg.type == Message.Type.Block;
+        }
+    }
+}
@@ -1,7 +1,7 @@
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.BitSet;
 import java.util.Arrays;
 import org.slf4j.LoggerFactory;
@@ -13,9 +13,14 @@ class Message {
     private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
 
     // Header includes 4 byte message length, 1 byte message type
-    private static final int HEADER_LEN = 5;
+    static final int HEADER_LEN = 5;
 
-    // All possible messages, corresponding to values 0..7
+    // Payloads of received messages that vary in size are drawn from here
+    static final BufferPool buffers = new BufferPool();
+
+    // All possible messages, corresponding to values 0..15. The ones after
+    // Piece are extensions, only sent to peers that announced them in the
+    // handshake (see NeighborPeer.EXT_*).
     public enum Type {
         Choke, //0
         Unchoke, //1
@@ -24,85 +29,204 @@ class Message {
         Have,
         Bitfield,
         Request,
-        Piece; //7
+        Piece, //7
+        BlockRequest, // index, offset, length (EXT_BLOCKS)
+        Block, // index, offset, contents (EXT_BLOCKS)
+        MultiRequest, // several BlockRequests in one (EXT_MULTI_REQUEST)
+        MultiHave, // several Haves in one (EXT_MULTI_HAVE)
+        HaveAll, // a bitfield with every piece (EXT_COMPACT_BITFIELD)
+        HaveNone, // a bitfield with no pieces (EXT_COMPACT_BITFIELD)
+        CompactBitfield, // a run-length encoded bitfield (EXT_COMPACT_BITFIELD)
+        Cancel; // index, offset, length of a request that is no longer wanted (EXT_CANCEL)
+
+        // values() copies the array on every call
+        private static final Type[] VALUES = values();
 
-        // Get which type from byte value 0..7
+        // Get which type from byte value, null if there is no such type
         public static Type from(byte s) {
-            return values()[s];
+            if(s < 0 || s >= VALUES.length) {
+                return null;
+            }
+            return VALUES[s];
         }
 
-        // Return type as byte value 0..7
+        // Return type as byte value
         public byte asByte() {
-            return (byte)Arrays.asList(values()).indexOf(this);
+            return (byte)this.ordinal();
         }
     };
 
+    // Messages without a payload carry no state, so each type has one instance
+    private static final Message[] emptyMessages = new Message[Type.VALUES.length];
+
+    // Have and Request messages are immutable, so the ones for low indices are
+    // made once and shared. Grown on demand up to MAX_SHARED_INDEX.
+    private static final int MAX_SHARED_INDEX = 1 << 16;
+    private static volatile Message[][] indexMessages = new Message[Type.VALUES.length][0];
+
     public final Type type; // type (1 byte)
     public final int len; // length of payload
     public final ByteBuffer payload; // payload (len bytes)
 
+    // For a piece or block sent straight from disk or received straight into
+    // it, the region of the file holding its contents, or the mapped memory
+    // (see MappedStorage). The payload then only holds what comes before the
+    // contents (see contentOffset()).
+    private final FileChannel file;
+    private final long position;
+    private final ByteBuffer mapped;
+
+    // Whether the payload was drawn from `buffers` and goes back on release()
+    private final boolean pooled;
+
+    // Decoded payload, made on the first call to getPayload()
+    private Payload decoded;
+
+    static {
+        for(Type t : Type.VALUES) {
+            emptyMessages[t.ordinal()] = new Message(t, 0, ByteBuffer.allocate(0));
+        }
+    }
+
     public Message(Type t, int len, ByteBuffer payload) {
+        this(t, len, payload, null, 0, false);
+    }
+
+    private Message(Type t, int len, ByteBuffer payload, FileChannel file, long position, boolean pooled) {
+        this(t, len, payload, file, position, null, pooled);
+    }
+
+    private Message(Type t, int len, ByteBuffer payload, FileChannel file, long position, ByteBuffer mapped,
+            boolean pooled) {
         this.type = t;
         this.len = len;
         this.payload = payload;
+        this.file = file;
+        this.position = position;
+        this.mapped = mapped;
+        this.pooled = pooled;
+    }
+
+    // A received message whose payload of `len` bytes was drawn from `buffers`
+    static Message pooled(Type t, int len, ByteBuffer payload) {
+        return new Message(t, len, payload, null, 0, true);
     }
 
-    // Get message from input stream
-    public static Message from_stream(InputStream in) throws java.io.IOException {
+    // Hand a pooled payload back once the message has been handled. The
+    // message must not be used afterwards. Does nothing for other messages.
+    public void release() {
+        if(this.pooled) {
+            buffers.release(this.payload);
+        }
+    }
 
-        // Read in the header
-        ByteBuffer buf = ByteBuffer.allocate(HEADER_LEN);
-        int read_len = in.read(buf.array(), 0, HEADER_LEN);
+    // The payload bytes held in memory, ready to be written after the header:
+    // all of it, or only what comes before the contents of a file backed piece
+    ByteBuffer body() {
+        ByteBuffer body = this.payload.duplicate();
+        body.clear();
+        body.limit(isFileBacked() ? contentOffset() : this.len);
+        return body;
+    }
 
-        if(read_len != HEADER_LEN) {
-            logger.error("failed to read header");
-            return null;
+    // Send what the channel takes of the contents of a file backed piece,
+    // after the first done bytes, once its header and body have been written.
+    // Returns how many bytes were sent.
+    long transferContents(WritableByteChannel out, long done) throws java.io.IOException {
+        if(this.mapped != null) {
+            return out.write(mappedFrom(done));
         }
+        return this.file.transferTo(this.position + done, contentLength() - done, out);
+    }
+
+    // Whether the contents of this message are in a file (or its mapping) rather than in the payload
+    public boolean isFileBacked() {
+        return this.file != null || this.mapped != null;
+    }
 
-        // Get the length and type from the header
-        int len = buf.getInt();
-        Type t = Type.from(buf.get());
+    // The contents of a mapped piece or block, null for other messages
+    ByteBuffer mappedContents() {
+        return (this.mapped == null) ? null : mappedFrom(0);
+    }
 
-        read_len = 0;
-        // Read in the payload (which should be of length len)
-        ByteBuffer payload = ByteBuffer.allocate(len);
-        while(read_len < len) {
-            read_len += in.read(payload.array(), read_len, len - read_len);
+    // The mapped contents after the first done bytes
+    private ByteBuffer mappedFrom(long done) {
+        ByteBuffer contents = this.mapped.duplicate();
+        contents.position(contents.position() + (int) done);
+        return contents;
+    }
+
+    // This message with the contents of a file backed piece or block read
+    // into memory, for handing to a peer in the same process. Other messages
+    // are returned as they are.
+    public Message inMemory() throws java.io.IOException {
+        if(!isFileBacked()) {
+            return this;
         }
-        if(read_len != len) {
-            logger.error("failed to read payload (expected {} bytes, got {})", len, read_len);
-            return null;
+        ByteBuffer buf = ByteBuffer.allocate(this.len);
+        buf.put(body());
+        if(this.mapped != null) {
+            buf.put(mappedFrom(0));
         }
-        payload.limit(len);
-
-        return new Message(t, len, payload);
+        int start = contentOffset();
+        while(buf.hasRemaining()) {
+            if(this.file.read(buf, this.position + buf.position() - start) < 0) {
+                throw new java.io.EOFException("piece region ends before " + contentLength() + " bytes were read");
+            }
+        }
+        return new Message(this.type, this.len, buf);
     }
 
-    // Put this message on an output stream
-    public void to_stream(OutputStream out) throws java.io.IOException {
-        // Allocate enough space for entire message 
-        ByteBuffer buf = ByteBuffer.allocate(HEADER_LEN + this.len);
-        // length of message
-        buf.putInt(this.len);
-        // type of message
-        buf.put(this.type.asByte());
-        // payload
-        buf.put(this.payload.array());
+    // Where the contents start in the payload of a piece (after the index) or
+    // a block (after the index and offset)
+    int contentOffset() {
+        return this.type == Type.Block ? 8 : 4;
+    }
 
-        // write entire message
-        out.write(buf.array());
+    // Number of content bytes of a piece or block
+    int contentLength() {
+        return this.len - contentOffset();
     }
 
     // Make a message with no payload (for example, not interested)
     public static Message empty(Type t) {
-        return new Message(t, 0, ByteBuffer.allocate(0));
+        return emptyMessages[t.ordinal()];
     }
 
     // A message that is just the index of a piece (for example, a request)
     public static Message index(Type t, int index) {
+        if(index < 0 || index >= MAX_SHARED_INDEX) {
+            return newIndex(t, index);
+        }
+
+        Message[] shared = indexMessages[t.ordinal()];
+        if(index < shared.length && shared[index] != null) {
+            return shared[index];
+        }
+
+        synchronized(Message.class) {
+            Message[][] all = indexMessages;
+            shared = all[t.ordinal()];
+            if(index >= shared.length) {
+                // grow to the next power of two that holds the index
+                int size = Math.min(MAX_SHARED_INDEX, Math.max(64, Integer.highestOneBit(index) << 1));
+                Message[][] grown = all.clone();
+                grown[t.ordinal()] = shared = Arrays.copyOf(shared, size);
+                indexMessages = grown;
+            }
+            if(shared[index] == null) {
+                shared[index] = newIndex(t, index);
+            }
+            return shared[index];
+        }
+    }
+
+    private static Message newIndex(Type t, int index) {
         ByteBuffer buf = ByteBuffer.allocate(4);
-        buf.putInt(index);
-        return new Message(t, 4, buf);
+        buf.putInt(0, index);
+        Message msg = new Message(t, 4, buf);
+        msg.decoded = msg.new IndexPayload(buf);
+        return msg;
     }
 
     // Make a bitfield message 
@@ -111,6 +235,96 @@ class Message {
         return new Message(Type.Bitfield, buf.array().length, buf);
     }
 
+    // Make the smallest bitfield message for the first numPieces bits, for a
+    // peer that takes the compact forms: HaveAll or HaveNone when all bits
+    // are the same, otherwise run-length encoded if that is shorter than raw.
+    public static Message bitfield(BitSet bits, int numPieces, boolean compact) {
+        if(!compact) {
+            return bitfield(bits);
+        }
+
+        int have = bits.get(0, numPieces).cardinality();
+        if(have == numPieces) {
+            return empty(Type.HaveAll);
+        }
+        if(have == 0) {
+            return empty(Type.HaveNone);
+        }
+
+        ByteBuffer runs = encodeRuns(bits, numPieces);
+        if(runs.remaining() >= (numPieces + 7) / 8) {
+            return bitfield(bits);
+        }
+        return new Message(Type.CompactBitfield, runs.remaining(), runs);
+    }
+
+    // Lengths of the alternating runs of clear and set bits below numPieces,
+    // starting with a (possibly empty) clear run, each as a varint of 7 bits
+    // per byte, low bits first.
+    private static ByteBuffer encodeRuns(BitSet bits, int numPieces) {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        boolean set = false;
+        int start = 0;
+        while(start < numPieces) {
+            int end = set ? bits.nextClearBit(start) : bits.nextSetBit(start);
+            if(end < 0 || end > numPieces) {
+                end = numPieces;
+            }
+
+            if(buf.remaining() < 5) {
+                ByteBuffer grown = ByteBuffer.allocate(buf.capacity() * 2);
+                buf.flip();
+                buf = grown.put(buf);
+            }
+            for(int run = end - start; ; run >>>= 7) {
+                if(run < 0x80) {
+                    buf.put((byte)run);
+                    break;
+                }
+                buf.put((byte)(run & 0x7f | 0x80));
+            }
+
+            start = end;
+            set = !set;
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // Runs of a CompactBitfield back into bits. A run reaching past numPieces
+    // or a length of more than 5 bytes means the message is broken, since
+    // encodeRuns never makes one.
+    private static BitSet decodeRuns(ByteBuffer buf, int len, int numPieces) throws java.io.IOException {
+        BitSet bits = new BitSet(numPieces);
+        boolean set = false;
+        int start = 0;
+        int i = 0;
+        while(i < len) {
+            long run = 0;
+            for(int shift = 0; ; shift += 7) {
+                if(i == len || shift > 28) {
+                    throw new java.io.IOException("bad run length in compact bitfield at byte " + i);
+                }
+                byte b = buf.get(i++);
+                run |= (long)(b & 0x7f) << shift;
+                if((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if(start + run > numPieces) {
+                throw new java.io.IOException("compact bitfield runs to " + (start + run) + ", past "
+                    + numPieces + " pieces");
+            }
+
+            if(set) {
+                bits.set(start, start + (int)run);
+            }
+            start += (int)run;
+            set = !set;
+        }
+        return bits;
+    }
+
     // A message transmitting a file piece
     public static Message piece(int index, byte[] contents) {
         ByteBuffer buf = ByteBuffer.allocate(contents.length + 4);
@@ -120,22 +334,199 @@ class Message {
         return msg;
     }
 
-    // TODO: Other payloads
+    // A message transmitting a file piece, whose contents are `length` bytes
+    // of `file` starting at `position`. Nothing is read until it is sent.
+    public static Message piece(int index, FileChannel file, long position, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(index);
+        return new Message(Type.Piece, length + 4, buf, file, position, false);
+    }
+
+    // A piece whose `length` bytes of contents have already been written to
+    // `file` at `position` as they were received
+    public static Message storedPiece(int index, FileChannel file, long position, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(0, index);
+        return new Message(Type.Piece, length + 4, buf, file, position, false);
+    }
+
+    // A piece whose contents are the bytes between position and limit of
+    // `mapped`, the memory a file is mapped to. Nothing is copied until it is
+    // sent, and when received into it (see receiveContents), it holds the
+    // contents as they arrive.
+    public static Message piece(int index, ByteBuffer mapped) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(0, index);
+        return new Message(Type.Piece, mapped.remaining() + 4, buf, null, 0, mapped, false);
+    }
+
+    // A request for `length` bytes of piece `index`, starting at `offset`
+    public static Message blockRequest(int index, int offset, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        buf.putInt(0, index);
+        buf.putInt(4, offset);
+        buf.putInt(8, length);
+        return new Message(Type.BlockRequest, 12, buf);
+    }
+
+    // Take back a request for `length` bytes of piece `index` at `offset`
+    public static Message cancel(int index, int offset, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        buf.putInt(0, index);
+        buf.putInt(4, offset);
+        buf.putInt(8, length);
+        return new Message(Type.Cancel, 12, buf);
+    }
+
+    // Requests for several blocks in one message, answered with a Block for
+    // each (a whole piece is asked for as a block at 0 with its length)
+    public static Message multiRequest(java.util.List<FileHandle.Block> blocks) {
+        ByteBuffer buf = ByteBuffer.allocate(12 * blocks.size());
+        for(FileHandle.Block b : blocks) {
+            buf.putInt(b.piece);
+            buf.putInt(b.offset);
+            buf.putInt(b.length);
+        }
+        return new Message(Type.MultiRequest, buf.capacity(), buf);
+    }
+
+    // Have messages for several pieces in one
+    public static Message multiHave(java.util.List<Integer> indices) {
+        ByteBuffer buf = ByteBuffer.allocate(4 * indices.size());
+        for(Integer index : indices) {
+            buf.putInt(index);
+        }
+        return new Message(Type.MultiHave, buf.capacity(), buf);
+    }
+
+    // A message transmitting part of a file piece
+    public static Message block(int index, int offset, byte[] contents) {
+        ByteBuffer buf = ByteBuffer.allocate(contents.length + 8);
+        buf.putInt(index);
+        buf.putInt(offset);
+        buf.put(contents);
+        return new Message(Type.Block, contents.length + 8, buf);
+    }
+
+    // Part of a file piece whose contents are `length` bytes of `file`
+    // starting at `position`. Nothing is read until it is sent.
+    public static Message block(int index, int offset, FileChannel file, long position, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putInt(0, index);
+        buf.putInt(4, offset);
+        return new Message(Type.Block, length + 8, buf, file, position, false);
+    }
+
+    // A block whose `length` bytes of contents have already been written to
+    // `file` at `position` as they were received
+    public static Message storedBlock(int index, int offset, FileChannel file, long position, int length) {
+        return block(index, offset, file, position, length);
+    }
+
+    // Same as piece(index, mapped), for part of a piece
+    public static Message block(int index, int offset, ByteBuffer mapped) {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putInt(0, index);
+        buf.putInt(4, offset);
+        return new Message(Type.Block, mapped.remaining() + 8, buf, null, 0, mapped, false);
+    }
+
+    // For a piece or block received into its file region (see storedPiece): write more
+    // of its contents, first whatever `buffered` holds, then straight from
+    // `src`. `done` is how many bytes have been written so far. Returns how
+    // many bytes were written by this call, which is 0 when `src` is
+    // non-blocking and has nothing ready.
+    long receiveContents(long done, ByteBuffer buffered, ReadableByteChannel src) throws java.io.IOException {
+        if(this.mapped != null) {
+            return receiveMapped(done, buffered, src);
+        }
+        long count = contentLength() - done;
+        long written = 0;
+
+        // Bytes that were read ahead along with the header
+        if(buffered.hasRemaining()) {
+            ByteBuffer chunk = buffered.duplicate();
+            chunk.limit(chunk.position() + (int) Math.min(chunk.remaining(), count));
+            while(chunk.hasRemaining()) {
+                written += this.file.write(chunk, this.position + done + written);
+            }
+            buffered.position(chunk.position());
+        }
+
+        // The rest goes from the socket to the file
+        while(written < count) {
+            long n = this.file.transferFrom(src, this.position + done + written, count - written);
+            if(n <= 0) {
+                break;
+            }
+            written += n;
+        }
+
+        return written;
+    }
+
+    // Same as receiveContents, into mapped memory
+    private long receiveMapped(long done, ByteBuffer buffered, ReadableByteChannel src) throws java.io.IOException {
+        ByteBuffer dst = mappedFrom(done);
+        int start = dst.position();
+
+        // Bytes that were read ahead along with the header
+        if(buffered.hasRemaining()) {
+            ByteBuffer chunk = buffered.duplicate();
+            chunk.limit(chunk.position() + Math.min(chunk.remaining(), dst.remaining()));
+            dst.put(chunk);
+            buffered.position(chunk.position());
+        }
+
+        // The rest goes from the socket to the mapping
+        while(dst.hasRemaining()) {
+            int n = src.read(dst);
+            if(n < 0) {
+                throw new java.io.EOFException("connection closed inside piece");
+            }
+            if(n == 0) {
+                break;
+            }
+        }
+
+        return dst.position() - start;
+    }
+
+    // Payload is decoded once and kept, decoding never moves the payload buffer's position
     public Payload getPayload() {
+        if(this.decoded == null) {
+            this.decoded = decodePayload();
+        }
+        return this.decoded;
+    }
+
+    private Payload decodePayload() {
         switch(this.type) {
             case Choke:
             case Unchoke:
             case Interested:
             case NotInterested:
+            case HaveAll:
+            case HaveNone:
                 return new NoPayload();
             case Have:
                 return new IndexPayload(this.payload);
             case Request:
                 return new IndexPayload(this.payload);
             case Bitfield:
+            case CompactBitfield:
                 return new BitfieldPayload(this.payload);
             case Piece:
                 return new PiecePayload(this.payload, this.len);
+            case BlockRequest:
+            case Cancel:
+                return new BlockRequestPayload(this.payload);
+            case Block:
+                return new PiecePayload(this.payload, this.len);
+            case MultiRequest:
+                return new MultiRequestPayload(this.payload, this.len);
+            case MultiHave:
+                return new MultiIndexPayload(this.payload, this.len);
         }
         return null;
     }
@@ -148,27 +539,87 @@ class Message {
     public class IndexPayload extends Payload {
         public final int index;
         private IndexPayload(ByteBuffer buf) {
-            this.index = buf.getInt();
+            this.index = buf.getInt(0);
+        }
+    }
+
+    // A payload that is a list of indices (for a multi-have)
+    public class MultiIndexPayload extends Payload {
+        public final int count;
+        private final ByteBuffer buf;
+        private MultiIndexPayload(ByteBuffer buf, int len) {
+            this.count = len / 4;
+            this.buf = buf;
+        }
+        public int index(int i) {
+            return this.buf.getInt(4 * i);
         }
     }
 
     // A payload that is a bitfield (for sending/receiving bitfields between peers)
     public class BitfieldPayload extends Payload {
-        public final BitSet bitfield;
+        private final ByteBuffer buf;
         private BitfieldPayload(ByteBuffer buf) {
-            this.bitfield = BitSet.valueOf(buf);
+            this.buf = buf;
+        }
+
+        // The bits, for a file of numPieces pieces. Throws if a compact
+        // bitfield does not fit that many.
+        public BitSet bitfield(int numPieces) throws java.io.IOException {
+            if(Message.this.type == Type.CompactBitfield) {
+                return decodeRuns(this.buf, Message.this.len, numPieces);
+            }
+            ByteBuffer bits = this.buf.duplicate();
+            bits.position(0).limit(Message.this.len);
+            return BitSet.valueOf(bits);
+        }
+    }
+
+    // A payload asking for part of a piece (or taking that back, for a cancel)
+    public class BlockRequestPayload extends Payload {
+        public final int index;
+        public final int offset;
+        public final int length;
+        private BlockRequestPayload(ByteBuffer buf) {
+            this.index = buf.getInt(0);
+            this.offset = buf.getInt(4);
+            this.length = buf.getInt(8);
+        }
+    }
+
+    // A payload asking for several blocks at once
+    public class MultiRequestPayload extends Payload {
+        public final int count;
+        private final ByteBuffer buf;
+        private MultiRequestPayload(ByteBuffer buf, int len) {
+            this.count = len / 12;
+            this.buf = buf;
+        }
+        public int index(int i) {
+            return this.buf.getInt(12 * i);
+        }
+        public int offset(int i) {
+            return this.buf.getInt(12 * i + 4);
+        }
+        public int length(int i) {
+            return this.buf.getInt(12 * i + 8);
         }
     }
 
-    // a payload that is a piece of a file
+    // a payload that is a piece of a file, or part of one (for a block)
     public class PiecePayload extends Payload {
         public final int index; 
+        public final int offset; // 0 for a whole piece
         public final ByteBuffer content;
         public final int length;
         private PiecePayload(ByteBuffer buf, int len) {
-            this.index = buf.getInt();
-            this.content = buf.slice().asReadOnlyBuffer();
-            this.length = len - 4;
+            int start = contentOffset();
+            this.index = buf.getInt(0);
+            this.offset = (start == 8) ? buf.getInt(4) : 0;
+            ByteBuffer content = buf.duplicate();
+            content.limit(isFileBacked() ? start : len).position(start);
+            this.content = content.slice().asReadOnlyBuffer();
+            this.length = len - start;
         }
     }
 }
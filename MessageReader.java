@@ -0,0 +1,235 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Reads messages off a channel. Bytes are read in bulk into one buffer that is
+ * reused for the life of the connection, so a read usually brings in several
+ * messages at once.
+ *
+ * Decoding does not allocate for messages without payload or with only an
+ * index (see Message.empty and Message.index). Other payloads are drawn from
+ * Message.buffers, and piece contents go straight to the file if a file handle
+ * is given.
+ *
+ * Reading can be resumed: on a non-blocking channel next() returns null when a
+ * message is not complete yet and carries on where it left off on the next call.
+ *
+ * A message longer than the longest a peer may send is an error, found before
+ * anything is allocated for it. Messages of unknown type are skipped over
+ * without keeping their payload.
+ */
+class MessageReader {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel ch;
+    private final boolean blocking;
+
+    // File handle pieces are received straight into, or null to read them into memory
+    private final FileHandle fH;
+
+    // Longest payload accepted
+    private final int maxLen;
+
+    // Bytes read but not yet decoded are between position and limit
+    private final ByteBuffer buf;
+
+    // Header of the message being read, type is null between messages
+    private Message.Type type;
+    private int len;
+
+    // Bytes of a message of unknown type still to be skipped over
+    private int skip;
+
+    // Payload of the message being read into memory
+    private ByteBuffer payload;
+
+    // Piece or block being received into the file, and how much of it has been written
+    private Message piece;
+    private long pieceDone;
+
+    public MessageReader(ReadableByteChannel ch, FileHandle fH, int maxLen) {
+        this.ch = ch;
+        this.blocking = !(ch instanceof SelectableChannel) || ((SelectableChannel) ch).isBlocking();
+        this.fH = fH;
+        this.maxLen = maxLen;
+        this.buf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.buf.flip();
+    }
+
+    /**
+     * Get the next message. On a blocking channel this waits until one has
+     * arrived, on a non-blocking one it returns null if there is not a
+     * complete message yet.
+     *
+     * @throws EOFException if the connection was closed
+     */
+    public Message next() throws IOException {
+        while(true) {
+
+            // Piece contents go from the channel to the file
+            if(this.piece != null) {
+                long n = this.piece.receiveContents(this.pieceDone, this.buf, this.ch);
+                this.pieceDone += n;
+                if(this.pieceDone == this.piece.contentLength()) {
+                    Message msg = this.piece;
+                    this.piece = null;
+                    return msg;
+                }
+                if(n == 0) {
+                    if(this.blocking) {
+                        throw new EOFException("connection closed inside piece");
+                    }
+                    return null;
+                }
+                continue;
+            }
+
+            // Payload of unknown type is dropped as it comes in
+            if(this.skip > 0) {
+                int n = Math.min(this.skip, this.buf.remaining());
+                this.buf.position(this.buf.position() + n);
+                this.skip -= n;
+                if(this.skip > 0) {
+                    if(!fill()) {
+                        return null;
+                    }
+                }
+                continue;
+            }
+
+            // Payload is read into memory
+            if(this.payload != null) {
+                copyBuffered(this.payload);
+                if(this.payload.hasRemaining()) {
+                    if(!fill()) {
+                        return null;
+                    }
+                    continue;
+                }
+
+                ByteBuffer payload = this.payload;
+                this.payload = null;
+                payload.flip();
+                return finish(Message.pooled(this.type, this.len, payload));
+            }
+
+            // Header
+            if(this.type == null) {
+                if(this.buf.remaining() < Message.HEADER_LEN) {
+                    if(!fill()) {
+                        return null;
+                    }
+                    continue;
+                }
+
+                this.len = this.buf.getInt();
+                byte t = this.buf.get();
+                this.type = Message.Type.from(t);
+
+                if(this.len < 0) {
+                    throw new IOException("invalid message length " + this.len);
+                }
+                if(this.len > this.maxLen) {
+                    throw new IOException("message of type " + t + " is " + this.len + " bytes long, more than "
+                        + this.maxLen);
+                }
+                if(this.type == null) {
+                    // Skip over it
+                    logger.warn("received message of unknown type {} ({} bytes), ignoring it", t, this.len);
+                    this.skip = this.len;
+                    continue;
+                }
+            }
+
+            // Messages that do not need a buffer of their own
+            if(this.len == 0) {
+                return finish(Message.empty(this.type));
+            }
+
+            boolean indexOnly = (this.type == Message.Type.Have || this.type == Message.Type.Request)
+                && this.len == 4;
+
+            // Pieces come with their index, blocks with their index and offset
+            int prefix = (this.type == Message.Type.Block) ? 8 : 4;
+            boolean toFile = (this.type == Message.Type.Piece || this.type == Message.Type.Block)
+                && this.fH != null && this.len > prefix;
+
+            if(indexOnly || toFile) {
+                if(this.buf.remaining() < prefix) {
+                    if(!fill()) {
+                        return null;
+                    }
+                    continue;
+                }
+
+                int index = this.buf.getInt();
+                if(indexOnly) {
+                    return finish(Message.index(this.type, index));
+                }
+
+                int offset = 0;
+                if(this.type == Message.Type.Block) {
+                    offset = this.buf.getInt();
+                    this.piece = this.fH.acceptBlock(index, offset, this.len - prefix);
+                } else {
+                    this.piece = this.fH.acceptPiece(index, this.len - prefix);
+                }
+                if(this.piece != null) {
+                    this.pieceDone = 0;
+                    this.type = null;
+                    continue;
+                }
+
+                // File handle would not take it, keep the contents in memory instead
+                this.payload = Message.buffers.acquire(this.len);
+                this.payload.putInt(index);
+                if(this.type == Message.Type.Block) {
+                    this.payload.putInt(offset);
+                }
+                continue;
+            }
+
+            this.payload = Message.buffers.acquire(this.len);
+        }
+    }
+
+    // Done with the current message
+    private Message finish(Message msg) {
+        this.type = null;
+        return msg;
+    }
+
+    // Move as much of the buffered bytes into dst as it will take
+    private void copyBuffered(ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), this.buf.remaining());
+        if(n == 0) {
+            return;
+        }
+        ByteBuffer chunk = this.buf.duplicate();
+        chunk.limit(chunk.position() + n);
+        dst.put(chunk);
+        this.buf.position(this.buf.position() + n);
+    }
+
+    // Read more from the channel, false if nothing was ready (non-blocking only)
+    private boolean fill() throws IOException {
+        this.buf.compact();
+        int n;
+        try {
+            n = this.ch.read(this.buf);
+        } finally {
+            this.buf.flip();
+        }
+
+        if(n < 0) {
+            throw new EOFException("connection closed");
+        }
+        return n > 0;
+    }
+}
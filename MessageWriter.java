@@ -0,0 +1,354 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes messages to a channel, either from its own thread or, on a
+ * non-blocking channel, whenever an event loop finds the channel writable.
+ * send() only queues the message, so whoever sends never waits on the socket.
+ *
+ * Messages that are queued by the time the writer gets to them go out
+ * together in one gathering write, up to MAX_BATCH messages or
+ * MAX_BATCH_BYTES bytes. A write is made as soon as the queue runs empty, so
+ * a lone message is not held back. The contents of a file backed piece are
+ * sent with transferTo after the write that carries its header; those of a
+ * mapped piece go in the gathering write itself.
+ *
+ * Pieces and blocks wait in a lane of their own. Every other message is
+ * written ahead of any queued piece, so a request or have does not sit
+ * behind piece data on its way out. A piece already being written is always
+ * finished first.
+ *
+ * The bytes waiting in the piece lane are counted. Once they reach the limit
+ * the writer is full: whoever queues pieces should hold off until the lane
+ * drains to half the limit, when the drained callback is run. How long the
+ * writer has been full tells a peer that cannot keep up.
+ */
+class MessageWriter implements Runnable {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    private static final int MAX_BATCH = 64;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    // Queued after the last message to stop the writer
+    private static final Message FINISH = new Message(Message.Type.Choke, 0, ByteBuffer.allocate(0));
+
+    private final GatheringByteChannel ch;
+    private final String name;
+
+    // Thread that writes on a blocking channel, or null
+    private final Thread thread;
+    // Run when messages are queued on a non-blocking channel, or null
+    private final Runnable wakeup;
+
+    // Control messages, and pieces (and FINISH) behind them
+    private final Queue<Message> control = new ConcurrentLinkedQueue<Message>();
+    private final Queue<Message> bulk = new ConcurrentLinkedQueue<Message>();
+    // One permit for each message in either lane
+    private final Semaphore queued = new Semaphore(0);
+
+    // Bytes waiting in the piece lane, how many there may be, and the most there were
+    private final AtomicLong bulkBytes = new AtomicLong(0);
+    private long limit = Long.MAX_VALUE;
+    private volatile long maxBulkBytes = 0;
+
+    // Since when (ms) the piece lane is full, or 0 if it is not
+    private volatile long fullSince = 0;
+
+    // Run once the piece lane drains after being full, or null
+    private Runnable drained = null;
+
+    // Header and payload of each message in the batch being written, and how
+    // many of its bytes are left
+    private final ByteBuffer[] bufs = new ByteBuffer[3 * MAX_BATCH];
+    private final ByteBuffer headers = ByteBuffer.allocateDirect(Message.HEADER_LEN * MAX_BATCH);
+    private int count = 0;
+    private long pending = 0;
+
+    // File backed piece whose contents go after the batch, and how much of them has been sent
+    private Message transfer = null;
+    private long transferred = 0;
+
+    // FINISH was taken off the queue, and once everything before it is written, done is counted down
+    private boolean finishing = false;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // How many messages went out in how many writes, for the log
+    private long messages = 0;
+    private long writes = 0;
+
+    /**
+     * Writer for a blocking channel, writing from a thread of its own once started
+     */
+    public MessageWriter(GatheringByteChannel ch, String name) {
+        this.ch = ch;
+        this.name = name;
+        this.thread = Threads.newThread(this, name, true);
+        this.wakeup = null;
+    }
+
+    /**
+     * Writer for a non-blocking channel. wakeup is run whenever a message is
+     * queued, and should have write() called on the channel's event loop.
+     */
+    public MessageWriter(GatheringByteChannel ch, String name, Runnable wakeup) {
+        this.ch = ch;
+        this.name = name;
+        this.thread = null;
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Count the writer as full once limit bytes are waiting in the piece lane, and run drained once it is down to
+     * half of that again. Call before anything is queued.
+     */
+    public void limit(long limit, Runnable drained) {
+        this.limit = limit;
+        this.drained = drained;
+    }
+
+    public void start() {
+        if(this.thread != null) {
+            this.thread.start();
+        }
+    }
+
+    // Queue a message to be written
+    public void send(Message msg) {
+        if(msg.type == Message.Type.Piece || msg.type == Message.Type.Block) {
+            long queued = this.bulkBytes.addAndGet(msg.len);
+            if(queued > this.maxBulkBytes) {
+                this.maxBulkBytes = queued;
+            }
+            if(queued >= this.limit && this.fullSince == 0) {
+                this.fullSince = System.currentTimeMillis();
+            }
+            this.bulk.add(msg);
+        } else {
+            this.control.add(msg);
+        }
+        this.queued.release();
+        if(this.wakeup != null) {
+            this.wakeup.run();
+        }
+    }
+
+    /**
+     * Take the piece, or block at offset of piece index, off the piece lane if it is still waiting there
+     *
+     * @return whether it was taken off
+     */
+    public boolean cancel(int index, int offset) {
+        for(Message msg : this.bulk) {
+            if(msg == FINISH) {
+                continue;
+            }
+            Message.PiecePayload payload = (Message.PiecePayload) msg.getPayload();
+            if(payload.index == index && payload.offset == offset && this.bulk.remove(msg)) {
+                // It no longer needs its permit, unless the writer took that already
+                this.queued.tryAcquire();
+                this.dequeued(msg);
+                msg.release();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the piece lane is full, and no more pieces should be queued for now
+     */
+    public boolean isFull() {
+        return this.fullSince != 0;
+    }
+
+    /**
+     * How long (ms) the piece lane has been full, 0 if it is not
+     */
+    public long fullFor(long now) {
+        long since = this.fullSince;
+        return (since == 0) ? 0 : Math.max(1, now - since);
+    }
+
+    /**
+     * Bytes of pieces waiting to be written
+     */
+    public long queuedBytes() {
+        return this.bulkBytes.get();
+    }
+
+    /**
+     * Write what is already queued and stop, waiting at most timeout ms for it
+     * to go out. Closing the channel afterwards stops a writer that is still
+     * blocked.
+     */
+    public void finish(long timeout) {
+        this.bulk.add(FINISH);
+        this.queued.release();
+        if(this.wakeup != null) {
+            this.wakeup.run();
+        }
+        if(Thread.currentThread() == this.thread) {
+            return;
+        }
+        try {
+            this.done.await(timeout, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        try {
+            while(this.done.getCount() > 0) {
+                // Wait until something is queued
+                this.queued.acquire();
+                this.queued.release();
+                write();
+            }
+        } catch(InterruptedException e) {
+            logger.debug("{} interrupted", this.name);
+        } catch(IOException e) {
+            if(this.ch.isOpen()) {
+                logger.error("{} failed, closing connection: {}", this.name, e);
+                try {
+                    this.ch.close();
+                } catch(IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write as much of what is queued as the channel takes. On a non-blocking
+     * channel, call again once it is writable.
+     *
+     * @return true if everything queued was written, false if the channel is full
+     */
+    public boolean write() throws IOException {
+        try {
+            return writeQueued();
+        } catch(IOException e) {
+            // Nothing more is going out, do not keep finish() waiting
+            this.done.countDown();
+            throw e;
+        }
+    }
+
+    private boolean writeQueued() throws IOException {
+        while(true) {
+            if(this.count > 0) {
+                this.pending -= this.ch.write(this.bufs, 0, this.count);
+                this.writes++;
+                if(this.pending > 0) {
+                    return false;
+                }
+                Arrays.fill(this.bufs, 0, this.count, null);
+                this.count = 0;
+            }
+
+            if(this.transfer != null) {
+                long n = this.transfer.transferContents(this.ch, this.transferred);
+                this.transferred += n;
+                if(this.transferred < this.transfer.contentLength()) {
+                    if(n == 0 && this.thread != null) {
+                        throw new EOFException("piece region ends before " + this.transfer.contentLength()
+                            + " bytes were sent");
+                    }
+                    return false;
+                }
+                this.transfer = null;
+            }
+
+            if(this.finishing) {
+                if(this.done.getCount() > 0) {
+                    logger.debug("{} sent {} messages in {} writes, at most {} bytes of pieces queued", this.name,
+                        this.messages, this.writes, this.maxBulkBytes);
+                    this.done.countDown();
+                }
+                return true;
+            }
+
+            Message first = next();
+            if(first == null) {
+                return true;
+            }
+            batch(first);
+        }
+    }
+
+    // The next message to write, control ones first, or null if there is none
+    private Message next() {
+        if(!this.queued.tryAcquire()) {
+            return null;
+        }
+        Message msg = this.control.poll();
+        if(msg != null) {
+            return msg;
+        }
+        // Null if its message was cancelled
+        msg = this.bulk.poll();
+        if(msg != null && msg != FINISH) {
+            this.dequeued(msg);
+        }
+        return msg;
+    }
+
+    // A piece was taken off its lane, see whether the lane drained
+    private void dequeued(Message msg) {
+        long queued = this.bulkBytes.addAndGet(-msg.len);
+        if(this.fullSince != 0 && queued <= this.limit / 2) {
+            this.fullSince = 0;
+            if(this.drained != null) {
+                this.drained.run();
+            }
+        }
+    }
+
+    // Make a batch of next and whatever else is queued behind it that fits
+    private void batch(Message next) {
+        this.headers.clear();
+        while(next != null) {
+            if(next == FINISH) {
+                this.finishing = true;
+                return;
+            }
+
+            int at = this.headers.position();
+            this.headers.putInt(next.len);
+            this.headers.put(next.type.asByte());
+            ByteBuffer header = this.headers.duplicate();
+            header.position(at).limit(at + Message.HEADER_LEN);
+
+            ByteBuffer body = next.body();
+            this.bufs[this.count++] = header;
+            this.bufs[this.count++] = body;
+            this.pending += Message.HEADER_LEN + body.remaining();
+            this.messages++;
+
+            // Mapped contents go in this batch, those of a file backed piece after it
+            ByteBuffer contents = next.mappedContents();
+            if(contents != null) {
+                this.bufs[this.count++] = contents;
+                this.pending += contents.remaining();
+            } else if(next.isFileBacked()) {
+                this.transfer = next;
+                this.transferred = 0;
+                return;
+            }
+            if(this.count + 3 > this.bufs.length || !this.headers.hasRemaining() || this.pending >= MAX_BATCH_BYTES) {
+                return;
+            }
+            next = next();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the contents in several files in a directory tree, laid end to end in the order they are listed, so one
+ * piece space spans all of them. A piece may end in one file and go on in the next.
+ *
+ * Each file is a FileStorage. What lies within one file is handed to it as is, so pieces that do not cross a
+ * boundary are still sent and received without copying. Pieces that do are read into memory to be sent, and
+ * received into a buffer of their message, which is written to both files once it is in (see stored).
+ */
+class MultiFileStorage implements Storage {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    /**
+     * One of the files, at path relative to the directory, of size bytes
+     */
+    static class Entry {
+        final String path;
+        final long size;
+
+        Entry(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final FileStorage[] files;
+    private final long[] starts; // where each file starts in the piece space, and the total size at the end
+
+    /**
+     * Open the files under dir, making the ones that are missing or too short as long as they should be, unless
+     * they are complete already
+     *
+     * @param sync whether every write should be on disk before it returns
+     */
+    public MultiFileStorage(String dir, List<Entry> entries, boolean complete, boolean sync) throws IOException {
+        this.files = new FileStorage[entries.size()];
+        this.starts = new long[entries.size() + 1];
+        for(int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            File f = new File(dir, e.path);
+            if(f.getParentFile() != null) {
+                f.getParentFile().mkdirs();
+            }
+            this.files[i] = new FileStorage(f.getPath(), e.size, complete, sync);
+            this.starts[i + 1] = this.starts[i] + e.size;
+        }
+        logger.debug("opened {} files under {}, {} bytes in all", this.files.length, dir,
+                this.starts[this.files.length]);
+    }
+
+    /**
+     * Read the list of files from listFile, one per line as its size in bytes and its path. Blank lines and lines
+     * starting with # are skipped.
+     */
+    public static List<Entry> readList(String listFile) throws Exception {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new FileReader(listFile));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] split = line.split("\\s+", 2);
+                if(split.length < 2 || Long.parseLong(split[0]) < 0) {
+                    throw new Exception("bad line in " + listFile + ": " + line);
+                }
+                entries.add(new Entry(split[1], Long.parseLong(split[0])));
+            }
+        } finally {
+            reader.close();
+        }
+        if(entries.isEmpty()) {
+            throw new Exception("no files listed in " + listFile);
+        }
+        return entries;
+    }
+
+    /**
+     * Total size of the files listed
+     */
+    public static long totalSize(List<Entry> entries) {
+        long total = 0;
+        for(Entry e : entries) {
+            total += e.size;
+        }
+        return total;
+    }
+
+    public void write(long position, ByteBuffer src) throws IOException {
+        ByteBuffer buf = src.duplicate();
+        while(buf.hasRemaining()) {
+            long at = position + buf.position() - src.position();
+            int i = this.fileAt(at);
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + this.within(i, at, part.remaining()));
+            this.files[i].write(at - this.starts[i], part);
+            buf.position(part.limit());
+        }
+    }
+
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        int i = this.fileAt(position);
+        long length = 0;
+        for(ByteBuffer src : srcs) {
+            length += src.remaining();
+        }
+        if(this.within(i, position, length) == length) {
+            // All in one file, a single write
+            this.files[i].write(position - this.starts[i], srcs);
+            return;
+        }
+        long at = position;
+        for(ByteBuffer src : srcs) {
+            int n = src.remaining();
+            this.write(at, src);
+            src.position(src.limit());
+            at += n;
+        }
+    }
+
+    public void read(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while(dst.hasRemaining()) {
+            long at = position + dst.position() - start;
+            if(at >= this.starts[this.files.length]) {
+                break;
+            }
+            int i = this.fileAt(at);
+            ByteBuffer part = dst.duplicate();
+            part.limit(part.position() + this.within(i, at, part.remaining()));
+            this.files[i].read(at - this.starts[i], part);
+            if(part.hasRemaining()) {
+                // The file ends early
+                break;
+            }
+            dst.position(part.position());
+        }
+    }
+
+    public Message piece(int index, long position, int length) {
+        int i = this.fileAt(position);
+        if(this.within(i, position, length) == length) {
+            return this.files[i].piece(index, position - this.starts[i], length);
+        }
+        ByteBuffer contents = this.readAll(position, length);
+        return (contents == null) ? null : Message.piece(index, contents);
+    }
+
+    public Message block(int index, int offset, long position, int length) {
+        int i = this.fileAt(position);
+        if(this.within(i, position, length) == length) {
+            return this.files[i].block(index, offset, position - this.starts[i], length);
+        }
+        ByteBuffer contents = this.readAll(position, length);
+        return (contents == null) ? null : Message.block(index, offset, contents);
+    }
+
+    public Message storedPiece(int index, long position, int length) {
+        int i = this.fileAt(position);
+        if(this.within(i, position, length) == length) {
+            return this.files[i].storedPiece(index, position - this.starts[i], length);
+        }
+        // Received into memory, written by stored
+        return Message.piece(index, ByteBuffer.allocate(length));
+    }
+
+    public Message storedBlock(int index, int offset, long position, int length) {
+        int i = this.fileAt(position);
+        if(this.within(i, position, length) == length) {
+            return this.files[i].storedBlock(index, offset, position - this.starts[i], length);
+        }
+        // Received into memory, written by stored
+        return Message.block(index, offset, ByteBuffer.allocate(length));
+    }
+
+    public void stored(long position, int length, Message received) throws IOException {
+        if(this.within(this.fileAt(position), position, length) == length) {
+            // Received straight into one of the files
+            return;
+        }
+        // Each receive has a buffer of its own, so copies of a block received at once do not mix
+        this.write(position, received.mappedContents());
+    }
+
+    public void force() throws IOException {
+        for(FileStorage f : this.files) {
+            f.force();
+        }
+    }
+
+    public void close() throws IOException {
+        IOException failed = null;
+        for(FileStorage f : this.files) {
+            try {
+                f.close();
+            } catch(IOException e) {
+                failed = e;
+            }
+        }
+        if(failed != null) {
+            throw failed;
+        }
+    }
+
+    // The file holding position, the last one for positions past the end
+    private int fileAt(long position) {
+        int lo = 0;
+        int hi = this.files.length - 1;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if(this.starts[mid] <= position) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    // How many of length bytes at position lie in file i
+    private int within(int i, long position, long length) {
+        long end = (i == this.files.length - 1) ? Long.MAX_VALUE : this.starts[i + 1];
+        return (int) Math.min(length, end - position);
+    }
+
+    // length bytes at position, read into memory, or null if they could not be read
+    private ByteBuffer readAll(long position, int length) {
+        ByteBuffer contents = ByteBuffer.allocate(length);
+        try {
+            this.read(position, contents);
+        } catch(IOException e) {
+            logger.error("failed reading {} bytes at {} across files: {}", length, position, e);
+            return null;
+        }
+        contents.flip();
+        return contents.asReadOnlyBuffer();
+    }
+}
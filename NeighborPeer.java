@@ -1,3 +1,9 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.util.BitSet;
 
 /**
@@ -5,9 +11,24 @@ import java.util.BitSet;
  */
 public class NeighborPeer {
 
+	// Protocol extensions, announced as bits of the last reserved handshake byte.
+	// An extension is only used if both peers announced it.
+	public static final int EXT_BLOCKS = 0x01; // BlockRequest and Block messages
+	public static final int EXT_MULTI_REQUEST = 0x02; // MultiRequest message
+	public static final int EXT_MULTI_HAVE = 0x04; // MultiHave message
+	public static final int EXT_COMPACT_BITFIELD = 0x08; // HaveAll, HaveNone and CompactBitfield messages
+	public static final int EXT_CANCEL = 0x10; // Cancel message
+
+	// Extensions this peer supports
+	public static final int EXT_SUPPORTED = EXT_BLOCKS | EXT_MULTI_REQUEST | EXT_MULTI_HAVE
+			| EXT_COMPACT_BITFIELD | EXT_CANCEL;
+
 	private int peerid; // id of this peer
 	private int port; // port number this neighbor listens on
 	private String hostName;
+	private InetSocketAddress address = null; // hostName and port, once looked up
+	private String socketPath = null; // Unix-domain socket it listens on instead, if any
+	private volatile int extensions; // extensions both sides support, known after the handshake
 
 	public NeighborPeer(int id, int port, String host) {
 		this.peerid = id;
@@ -26,4 +47,66 @@ public class NeighborPeer {
 	public String getHostName() {
 		return this.hostName;
 	}
+
+	/**
+	 * Address to connect to. A host name is only looked up the first time, an IP address is used as it is.
+	 */
+	public synchronized InetSocketAddress getAddress() throws UnknownHostException {
+		if (this.address == null) {
+			InetSocketAddress a = new InetSocketAddress(this.hostName, this.port);
+			if (a.isUnresolved()) {
+				throw new UnknownHostException(this.hostName);
+			}
+			this.address = a;
+		}
+		return this.address;
+	}
+
+	/**
+	 * Path of the Unix-domain socket to connect to instead of the host and port, or null to use those
+	 */
+	public String getSocketPath() {
+		return this.socketPath;
+	}
+
+	public void setSocketPath(String path) {
+		this.socketPath = path;
+	}
+
+	/**
+	 * Address to connect to: the Unix-domain socket if there is one, the host and port otherwise
+	 */
+	public SocketAddress getSocketAddress() throws IOException {
+		if (this.socketPath != null) {
+			return UnixSockets.address(this.socketPath);
+		}
+		return this.getAddress();
+	}
+
+	/**
+	 * Whether the host is this machine
+	 */
+	public boolean isLocal() {
+		try {
+			InetAddress a = this.getAddress().getAddress();
+			return a.isLoopbackAddress() || a.isAnyLocalAddress() || NetworkInterface.getByInetAddress(a) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public int getExtensions() {
+		return this.extensions;
+	}
+
+	public void setExtensions(int extensions) {
+		this.extensions = extensions;
+	}
+
+	/**
+	 * Whether the extension (one of the EXT_* bits) can be used with this peer
+	 */
+	public boolean supports(int extension) {
+		return (this.extensions & extension) != 0;
+	}
 }
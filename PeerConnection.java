@@ -2,8 +2,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.BitSet;
 
 
@@ -11,37 +15,80 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.Level;
 
-import static com.mycila.event.Topics.*;
-import static com.mycila.event.Topic.*;
-import com.mycila.event.*;
 
 /**
- * Thread class to process a received connection between me and a peer
+ * Thread class to process a received connection between me and a peer. Runs on a platform or virtual thread, see
+ * Threads.
+ *
+ * Instead of being started as a thread, a connection can be registered with an EventLoop, which then does the
+ * handshake, reading and writing without blocking, along with those of many other connections.
+ *
+ * This is the link TcpTransport makes for each neighbor.
  */
-public class PeerConnection extends Thread {
+public class PeerConnection implements Transport.Link, Runnable, EventLoop.Handler {
 
 	private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
 
 	private Integer myid; // my ID
-	private Socket connection; // socket
+	private ConnectionManager manager; // told about the connection and the messages received
+	private SocketChannel channel; // TCP or Unix-domain socket channel
+
+	// File handle pieces are received straight into, or null to read them into memory
+	private FileHandle fH;
 
 	// The neighbor we are connected with, possibly unknown
 	private NeighborPeer peer = null;
 
+	// Whether we initiated the connection, and how long connecting may take (ms)
+	private boolean initiator = false;
+	private int connectTimeout = 0;
+
+	// Writes queued messages to the channel, started after the handshake
+	private volatile MessageWriter writer = null;
+
+	// Whether the connection was closed
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	// How long closing waits for queued messages to go out (ms)
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	// Decodes the messages received once the handshake is done
+	private MessageReader reader = null;
+
+	// Event loop doing the I/O of this connection, or null if it runs as a thread of its own
+	private EventLoop loop = null;
+	private SelectionKey key = null;
+
+	// Handshake being sent and received, on an event loop. Each is done once it has no bytes remaining.
+	private ByteBuffer handshakeOut = null;
+	private ByteBuffer handshakeIn = null;
+
+	// Whether the event loop was asked to write what is queued
+	private final AtomicBoolean writeWanted = new AtomicBoolean(false);
+
 	private static final String handshake_header = "P2PFILESHARINGPROJ";
 
-    private PeerConnection(Integer myid) {
-        this.myid = myid;
+	// Extensions this peer announces in the last reserved byte of the handshake
+	private static final int extensions = NeighborPeer.EXT_SUPPORTED;
+	private static final int extensions_offset = 27;
+
+    private PeerConnection(ConnectionManager manager, FileHandle fH) {
+        this.manager = manager;
+        this.myid = manager.myid();
+        this.fH = fH;
 	}
 
     /**
      * Initiate connection to the given peer.
      * Called for each peer of lower id than this one
      */
-    public static PeerConnection connectTo(Integer myid, NeighborPeer peer) throws IOException {
-        PeerConnection pc = new PeerConnection(myid);
+    public static PeerConnection connectTo(ConnectionManager manager, NeighborPeer peer, FileHandle fH,
+            int connectTimeout) {
+        PeerConnection pc = new PeerConnection(manager, fH);
         pc.peer = peer;
-        logger.debug("Initiating a peer connection with peer {} (self={})", peer.getID(), myid);
+        pc.initiator = true;
+        pc.connectTimeout = connectTimeout;
+        logger.debug("Initiating a peer connection with peer {} (self={})", peer.getID(), pc.myid);
         return pc;
     }
 
@@ -49,21 +96,21 @@ public class PeerConnection extends Thread {
      * Handle a connection initiated by another peer.
      * Should receive connections for each peer of higher id
      */
-    public static PeerConnection handleConnection(Integer myid, Socket sock) throws IOException {
-        PeerConnection pc = new PeerConnection(myid);
-        pc.connection = sock;
-        logger.debug("Peer connection initated from unknown peer (self={})", myid);
+    public static PeerConnection handleConnection(ConnectionManager manager, SocketChannel channel, FileHandle fH) {
+        PeerConnection pc = new PeerConnection(manager, fH);
+        pc.channel = channel;
+        logger.debug("Peer connection initated from unknown peer (self={})", pc.myid);
         return pc;
     }
 
     /**
      * Depending on who initiated, either: 
-     * 1. Connect to a remote peer, establishing the `connection`
+     * 1. Connect to a remote peer, establishing the `channel`
      * variable.
      * 2. Wait for a handshake message on the connection, establishing
      * the `peer` variable.
      *
-     * Upon completion, both `peer` and `connection` are guaranteed to
+     * Upon completion, both `peer` and `channel` are guaranteed to
      * be set.
      */
     private void preProtocol() throws Exception {
@@ -73,7 +120,7 @@ public class PeerConnection extends Thread {
             // We received the connection, don't know who from
 
             // Connection must exist
-            assert(this.connection != null);
+            assert(this.channel != null);
 
             // Expect a handshake from them first
             this.peer = this.awaitHandshake();
@@ -90,7 +137,7 @@ public class PeerConnection extends Thread {
             logger.debug("Pre protocol with initiating peer {} is complete (self={})",
                 this.peer.getID(), this.myid);
 
-        } else if(this.connection == null) {
+        } else if(this.channel == null) {
             // We are initiaing the connection
 
             // We should know to whom
@@ -99,8 +146,14 @@ public class PeerConnection extends Thread {
             logger.info("Peer {} makes a connection to Peer {}",
                     this.myid, this.peer.getID());            
             
-            // Initiate TCP connection and send handshake
-            this.connection = new Socket(this.peer.getHostName(), this.peer.getPort());
+            // Initiate the connection and send handshake
+            this.channel = this.openChannel();
+            if(this.peer.getSocketPath() == null) {
+                this.channel.socket().connect(this.peer.getAddress(), this.connectTimeout);
+            } else {
+                // Bounded by the connection manager's timeout instead
+                this.channel.connect(this.peer.getSocketAddress());
+            }
             this.sendHandshake();
 
             // Should get handshake back
@@ -111,12 +164,21 @@ public class PeerConnection extends Thread {
                 logger.error("connected peer returned mismatching handshake! (target = {}, actual = {})",
                     this.peer.getID(), validate.getID());
             }
+            this.peer.setExtensions(validate.getExtensions());
 
             logger.debug("Pre protocol with initiating self to peer {} is complete (seld={})",
                 this.peer.getID(), this.myid);
         }
     }
 
+	/**
+	 * Start a thread of its own for this connection
+	 */
+	public void start() {
+		String name = (this.peer == null) ? "connection" : String.format("connection-%d", this.peer.getID());
+		Threads.newThread(this, name, false).start();
+	}
+
 	/**
 	 * Run the thread
 	 */
@@ -127,93 +189,187 @@ public class PeerConnection extends Thread {
                 preProtocol(); // sets up assumed preconditions
 
             } catch(Exception e) {
-                logger.error("failed to handshake, closing connection: {}", e);
-                this.exitThread();
+                this.handshakeFailed(e);
+                return;
             }
 
-	    logger.debug("new connection (peer = {}, self = {})", this.peer.getID(), this.myid);
-
-
-            // Listen for when we need to send a message on this connection
-            PeerProcess.dispatcher.subscribe(topic(String.format("peer/%d/send", this.peer.getID())),
-                Message.class, new SendHandler());
+	    this.established();
 
-            // Listen for when we need to close this connection
-            PeerProcess.dispatcher.subscribe(topic(String.format("peer/%d/close", this.peer.getID())),
-                Boolean.class, new CloseHandler());
-
-            // Send out connection notification
-            PeerProcess.dispatcher.publish(topic("connected"), this.peer);
-		
 	    /********************************************************/
 	    /******** Threads enters send/receive loop **************/
 	    /********************************************************/
 	    logger.debug("Peer {} thread enters send/receive loop (self={})",
                 this.peer.getID(), this.myid);
 
-	    while(!connection.isClosed()) {
+	    while(this.channel.isOpen()) {
 
 		Message msg;
 
 		try {
             // Receive incoming message
-            msg = Message.from_stream(this.connection.getInputStream());
+            msg = this.reader.next();
+		} catch(java.io.EOFException e) {
+		    logger.debug("connection closed by peer {} (self = {})", this.peer.getID(), this.myid);
+		    this.exitThread();
+		    break;
 		} catch(Exception e) {
-		    PeerProcess.dispatcher.publish(topic("recv/error"), e);
-		    continue;
+		    // The reader cannot tell where the next message starts, give up on the connection
+		    this.readFailed(e);
+		    this.exitThread();
+		    break;
 		}
 
         if(msg == null) {
-            logger.warn("null returned from Message.from_stream (self = {})", myid);
+            logger.warn("null returned from MessageReader.next (self = {})", myid);
             continue;
         }
 
-                // Take action according to message type
-        switch (msg.type) {
-            case Choke:
-                PeerProcess.dispatcher.publish(topic("recv/choke"), peer(msg));
-                break;
-            case Unchoke:
-                PeerProcess.dispatcher.publish(topic("recv/unchoke"), peer(msg));
-                break;
-            case Interested:
-                PeerProcess.dispatcher.publish(topic("recv/interested"), peer(msg));
-                break;
-            case NotInterested:
-                PeerProcess.dispatcher.publish(topic("recv/not-interested"), peer(msg));
-                break;
-            case Have:
-                PeerProcess.dispatcher.publish(topic("recv/have"), peer(msg));
-                break;
-            case Bitfield:
-                PeerProcess.dispatcher.publish(topic("recv/bitfield"), peer(msg));
-                break;
-            case Request:
-                PeerProcess.dispatcher.publish(topic("recv/request"), peer(msg));
-                break;
-            case Piece:
-                PeerProcess.dispatcher.publish(topic("recv/piece"), peer(msg));
-                break;
-            default:
-                PeerProcess.dispatcher.publish(topic("recv/malformed"), peer(msg));
-                break;
-        }
+        this.dispatch(msg);
 	    }
 	}
 
+    /**
+     * The handshake is done, start sending and receiving messages
+     */
+    private void established() {
+	    logger.debug("new connection (peer = {}, self = {})", this.peer.getID(), this.myid);
+
+            String name = String.format("writer-%d", this.peer.getID());
+            if(this.loop == null) {
+                this.writer = new MessageWriter(this.channel, name);
+            } else {
+                this.writer = new MessageWriter(this.channel, name, new WriteWanted());
+            }
+            final int id = this.peer.getID();
+            this.writer.limit(this.manager.sendQueueLimit(), new Runnable() {
+                public void run() {
+                    manager.drained(id);
+                }
+            });
+            this.writer.start();
+            this.reader = new MessageReader(this.channel, this.fH, this.manager.maxMessageLength());
+
+            // Messages for this peer come through here now
+            this.manager.established(this, this.peer, this.initiator);
+    }
+
+    /**
+     * Let the connection manager know about a received message
+     */
+    private void dispatch(Message msg) {
+        this.manager.received(this.peer.getID(), msg);
+    }
+
+    // Log why reading failed, unless it was because we closed the connection
+    private void readFailed(Exception e) {
+        if(this.channel.isOpen()) {
+            logger.error("failed to read from peer {}, closing connection: {}", this.peer.getID(), e);
+        } else {
+            logger.debug("connection to peer {} closed (self = {})", this.peer.getID(), this.myid);
+        }
+    }
+
+    // Log why the handshake failed and close. Connecting again is up to the connection manager.
+    private void handshakeFailed(Exception e) {
+        if(this.initiator) {
+            logger.debug("failed to connect to peer {}: {} (self = {})", this.peer.getID(), e.toString(), this.myid);
+        } else if(this.channel.isOpen()) {
+            logger.error("failed to handshake, closing connection: {}", e);
+        }
+        this.exitThread(e);
+    }
+
+    /**
+     * Close the connection unless the handshake is done by now
+     */
+    public void abort() {
+        if(this.writer == null && !this.closed.get()) {
+            logger.warn("handshake with peer {} timed out, closing connection (self = {})",
+                this.peer == null ? null : this.peer.getID(), this.myid);
+            this.exitThread(new java.net.SocketTimeoutException("handshake timed out"));
+        }
+    }
+
 	/**
 	 * Function to print that thread is exiting 
 	 */
 	private void exitThread() {
-		logger.debug("closing connection thread (peer = {}, self = {})", this.peer.getID(), this.myid);
+		this.exitThread(null);
+	}
+
+	private void exitThread(Exception cause) {
+		if(!this.closed.compareAndSet(false, true)) {
+			return;
+		}
+		Integer id = (this.peer == null) ? null : this.peer.getID();
+		logger.debug("closing connection thread (peer = {}, self = {})", id, this.myid);
         try {
-            connection.close();
+            if(channel != null) {
+                channel.close();
+            }
         } catch(Exception e) {
-            logger.error("closing connection failed (peer = {}, self = {})", peer.getID(), myid);
+            logger.error("closing connection failed (peer = {}, self = {})", id, myid);
+        }
+        if(this.writer != null) {
+            // Nothing more can be sent, let the writer go
+            this.manager.closed(id, this);
+            this.writer.finish(0);
+        } else if(this.initiator) {
+            // Never got connected
+            this.manager.failed(this.peer, cause != null ? cause : new IOException("connection closed"));
         }
 	}
 
 
+    /**
+     * Our handshake message, ready to be written
+     */
+    private ByteBuffer handshake() {
+		ByteBuffer buf = ByteBuffer.allocate(32);
+		buf.put(handshake_header.getBytes());
+		buf.put(extensions_offset, (byte) extensions);
+		buf.putInt(28, this.myid);
+		buf.clear();
+		return buf;
+    }
+
+    /**
+     * The peer a received handshake message is from
+     */
+    private NeighborPeer fromHandshake(ByteBuffer buf) throws Exception {
+
+		// Test whether it is in fact a handshake message
+		byte[] test_handshake_header = new byte[handshake_header.length()];
+		ByteBuffer header = buf.duplicate();
+		header.rewind();
+		header.get(test_handshake_header, 0, handshake_header.length());
+		String test = new String(test_handshake_header);
+
+		if (!test.equals(handshake_header)) {
+			// Was not the handshake message
+			logger.error("received invalid handshake from {} (header = {}, self = {})",
+                            this.peer == null ? null : this.peer.getID(), test, this.myid);
+			throw new Exception("invalid handshake header");
+		}
+
+		// Get the peer that we're talking to, as configured. Its address is not looked up.
+		int id = buf.getInt(28);
+		NeighborPeer peer = this.manager.neighbor(id);
+		if (peer == null) {
+			SocketAddress from = this.channel.getRemoteAddress();
+			if (from instanceof InetSocketAddress) {
+				InetSocketAddress inet = (InetSocketAddress) from;
+				peer = new NeighborPeer(id, inet.getPort(), inet.getAddress().getHostAddress());
+			} else {
+				peer = new NeighborPeer(id, 0, "localhost");
+			}
+		}
+		peer.setExtensions(extensions & buf.get(extensions_offset));
+
+		logger.debug("received handshake from {} (self = {})", peer.getID(), this.myid);
+		return peer;
+    }
+
         /**
          * Send a handshake message to this peer
          */
@@ -221,10 +377,10 @@ public class PeerConnection extends Thread {
 
 		try {
 			// Send handshake bytes
-			ByteBuffer buf = ByteBuffer.allocate(32);
-			buf.put(handshake_header.getBytes());
-			buf.putInt(28, this.myid);
-			this.connection.getOutputStream().write(buf.array());
+			ByteBuffer buf = this.handshake();
+			while (buf.hasRemaining()) {
+				this.channel.write(buf);
+			}
 			logger.debug("Sent handshake message to {} (self={})", this.peer.getID(), this.myid);
 
 		} catch (Exception e) {
@@ -237,77 +393,226 @@ public class PeerConnection extends Thread {
      */
     private NeighborPeer awaitHandshake() throws Exception{
 
-		try {
-			// Read in message
-			ByteBuffer buf = ByteBuffer.allocate(32);
-			this.connection.getInputStream().read(buf.array(), 0, 32);
-
-			// Test whether it is in fact a handshake message
-			byte[] test_handshake_header = new byte[handshake_header.length()];
-			buf.get(test_handshake_header, 0, handshake_header.length());
-			String test = new String(test_handshake_header);
-
-			if (!test.equals(handshake_header)) {
-				// Was not the handshake message
-				logger.error("received invalid handshake from {} (header = {}, self = {})",
-                                    this.peer.getID(), test, this.myid);
-                                throw new Exception("invalid handshake header");
+		// Read in message
+		ByteBuffer buf = ByteBuffer.allocate(32);
+		while (buf.hasRemaining()) {
+			if (this.channel.read(buf) < 0) {
+				throw new java.io.EOFException("closed during handshake");
 			}
-
-			// Get the peer that we're talking to
-			int id = buf.getInt(28);
-			NeighborPeer peer = new NeighborPeer(id, this.connection.getPort(), this.connection
-					.getInetAddress().getHostName());
-
-			logger.debug("received handshake from {} (self = {})", peer.getID(), this.myid);
-                        return peer;
-
-		} catch (Exception e) {
-			logger.error("failed to receive handshake {}", e);
-                        throw e;
 		}
+		return this.fromHandshake(buf);
 	}
 
+    // A channel to connect to the peer with, Unix-domain if it listens on a socket path
+    private SocketChannel openChannel() throws IOException {
+        return (this.peer.getSocketPath() == null) ? SocketChannel.open() : UnixSockets.open();
+    }
+
+    /**
+     * Do the I/O of this connection on an event loop rather than a thread of its own. Connects first if we are
+     * initiating the connection.
+     */
+    public void register(final EventLoop loop) {
+        this.loop = loop;
+        loop.execute(new Runnable() {
+            public void run() {
+                PeerConnection pc = PeerConnection.this;
+                try {
+                    if(pc.channel == null) {
+                        // We are initiaing the connection
+                        logger.info("Peer {} makes a connection to Peer {}", pc.myid, pc.peer.getID());
+
+                        pc.channel = pc.openChannel();
+                        pc.key = loop.register(pc.channel, 0, pc);
+                        if(pc.channel.connect(pc.peer.getSocketAddress())) {
+                            pc.connected();
+                        } else {
+                            pc.key.interestOps(SelectionKey.OP_CONNECT);
+                        }
+                    } else {
+                        // We received the connection, expect a handshake from them first
+                        pc.handshakeIn = ByteBuffer.allocate(32);
+                        pc.key = loop.register(pc.channel, SelectionKey.OP_READ, pc);
+                    }
+                } catch(Exception e) {
+                    pc.handshakeFailed(e);
+                }
+            }
+        });
+    }
+
     /**
-     * On send event, put the message into the output stream
+     * The channel is ready, on the event loop
      */
-    private class SendHandler implements Subscriber<Message> {
-        public void onEvent(Event<Message> event) throws IOException {
-            if(!connection.isClosed()) {
-                event.getSource().to_stream(PeerConnection.this.connection.getOutputStream());
+    public void ready(SelectionKey key) {
+        try {
+            if(key.isConnectable() && this.channel.finishConnect()) {
+                this.connected();
+            }
+            if(key.isValid() && key.isWritable()) {
+                if(this.writer == null) {
+                    this.writeHandshake();
+                } else {
+                    this.writeQueued();
+                }
+            }
+            if(key.isValid() && key.isReadable()) {
+                if(this.reader == null) {
+                    this.readHandshake();
+                } else {
+                    this.readMessages();
+                }
+            }
+        } catch(Exception e) {
+            if(this.reader == null) {
+                this.handshakeFailed(e);
+            } else if(e instanceof java.io.EOFException) {
+                logger.debug("connection closed by peer {} (self = {})", this.peer.getID(), this.myid);
+                this.exitThread();
             } else {
-                logger.error("attempted to send to dead peer {} (self = {})", peer.getID(), myid);
+                // The reader cannot tell where the next message starts, give up on the connection
+                this.readFailed(e);
+                this.exitThread();
+            }
+        }
+    }
+
+    // Our connection to the peer is made, send the handshake and expect theirs back
+    private void connected() throws Exception {
+        this.handshakeIn = ByteBuffer.allocate(32);
+        this.key.interestOps(SelectionKey.OP_READ);
+        this.writeHandshake();
+    }
+
+    private void writeHandshake() throws Exception {
+        if(this.handshakeOut == null) {
+            this.handshakeOut = this.handshake();
+        }
+        this.channel.write(this.handshakeOut);
+        if(this.handshakeOut.hasRemaining()) {
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+        logger.debug("Sent handshake message to {} (self={})", this.peer.getID(), this.myid);
+        this.handshakeDone();
+    }
+
+    private void readHandshake() throws Exception {
+        if(this.channel.read(this.handshakeIn) < 0) {
+            throw new java.io.EOFException("closed during handshake");
+        }
+        if(this.handshakeIn.hasRemaining()) {
+            return;
+        }
+
+        NeighborPeer from = this.fromHandshake(this.handshakeIn);
+        if(this.peer == null) {
+            // Now we know who they are, send them our handshake
+            this.peer = from;
+            logger.info("Peer {} is connected from Peer {}", this.myid, this.peer.getID());
+            this.writeHandshake();
+            return;
+        }
+
+        if(this.peer.getID() != from.getID()) {
+            // Something went wrong with handshake response ...
+            logger.error("connected peer returned mismatching handshake! (target = {}, actual = {})",
+                this.peer.getID(), from.getID());
+        }
+        this.peer.setExtensions(from.getExtensions());
+        this.handshakeDone();
+    }
+
+    // Once both handshakes are through, start on messages
+    private void handshakeDone() {
+        if(this.handshakeOut.hasRemaining() || this.handshakeIn.hasRemaining() || this.writer != null) {
+            return;
+        }
+        this.established();
+        this.writeWanted.set(true);
+        this.writeQueued();
+    }
+
+    // Decode and dispatch all messages that have arrived
+    private void readMessages() throws Exception {
+        Message msg;
+        while((msg = this.reader.next()) != null) {
+            this.dispatch(msg);
+        }
+    }
+
+    // Write what the channel takes of the queued messages, and wait for it to be writable if there is more
+    private void writeQueued() {
+        this.writeWanted.set(false);
+        try {
+            if(this.writer.write()) {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch(Exception e) {
+            if(this.channel.isOpen()) {
+                logger.error("failed to send to peer {}, closing connection: {}", this.peer.getID(), e);
+                this.exitThread();
             }
         }
     }
 
     /**
-     * On close event, close this connection
+     * Messages were queued, have the event loop write them unless it was asked to already
      */
-    private class CloseHandler implements Subscriber<Boolean> {
-        public void onEvent(Event<Boolean> event) {
-            PeerConnection.this.exitThread();
+    private class WriteWanted implements Runnable {
+        public void run() {
+            if(PeerConnection.this.writeWanted.compareAndSet(false, true)) {
+                PeerConnection.this.loop.execute(new Runnable() {
+                    public void run() {
+                        PeerConnection.this.writeQueued();
+                    }
+                });
+            }
         }
     }
 
     /**
-     * Represent message from peer with id
+     * Queue a message for the peer. The writer writes it to the channel together with whatever else is queued by then.
      */
-    public class PeerMessage {
-        public final Integer id;
-        public final Message msg;
-
-        public PeerMessage(Integer id, Message msg) {
-            this.id = id;
-            this.msg = msg;
+    public void send(Message msg) {
+        if(this.channel.isOpen()) {
+            this.writer.send(msg);
+        } else {
+            logger.error("attempted to send to dead peer {} (self = {})", this.peer.getID(), this.myid);
         }
     }
 
-    private PeerMessage peer(Message msg) {
-        return new PeerMessage(this.peer.getID(), msg);
+    public boolean cancel(int index, int offset) {
+        return this.writer.cancel(index, offset);
+    }
+
+    public boolean isFull() {
+        return this.writer.isFull();
+    }
+
+    public long fullFor(long now) {
+        return this.writer.fullFor(now);
     }
 
-    public static String sendTopic(int peerid) {
-        return String.format("peer/%d/send", peerid);
+    public long queuedBytes() {
+        return this.writer.queuedBytes();
+    }
+
+    /**
+     * Close the connection right away, dropping whatever is still queued
+     */
+    public void drop() {
+        this.exitThread();
+    }
+
+    /**
+     * Close the connection, once the messages already queued have gone out
+     */
+    public void close() {
+        this.writer.finish(CLOSE_TIMEOUT);
+        this.exitThread();
     }
 }
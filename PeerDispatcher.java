@@ -0,0 +1,183 @@
+import java.util.EnumMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the handlers of PeerProcess. A received message is handed straight to
+ * the handler for its type, without topics or event objects in between.
+ *
+ * Handlers run on a fixed set of single threaded loops. Everything about one
+ * peer (its connection, its messages and tasks given its id) runs on the loop
+ * picked by the peer's id, so it is handled one at a time and in the order it
+ * came in, while different peers can be handled on different loops at once.
+ * Tasks that are not about one peer, like the timers, run on the first loop.
+ * With a single loop everything runs in order on one thread.
+ */
+public class PeerDispatcher {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    /**
+     * Reacts to a message received from a peer
+     */
+    public interface MessageHandler {
+        void onMessage(int id, Message msg) throws Exception;
+    }
+
+    /**
+     * Reacts to a new connection, once the handshake is done
+     */
+    public interface ConnectHandler {
+        void onConnect(NeighborPeer peer) throws Exception;
+    }
+
+    /**
+     * Reacts to the queue of messages for a peer draining after it was full
+     */
+    public interface DrainHandler {
+        void onDrain(int id) throws Exception;
+    }
+
+    private final ExecutorService[] loops;
+
+    // Set up before any connection is made, only read afterwards
+    private final EnumMap<Message.Type, MessageHandler> handlers =
+        new EnumMap<Message.Type, MessageHandler>(Message.Type.class);
+    private ConnectHandler connectHandler = null;
+    private DrainHandler drainHandler = null;
+
+    public PeerDispatcher(int threads) {
+        this.loops = new ExecutorService[Math.max(1, threads)];
+        for(int i = 0; i < this.loops.length; i++) {
+            final String name = String.format("dispatcher-%d", i);
+            this.loops[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, name);
+                }
+            });
+        }
+    }
+
+    /**
+     * Handle received messages of the given type with handler
+     */
+    public void subscribe(Message.Type type, MessageHandler handler) {
+        this.handlers.put(type, handler);
+    }
+
+    public void subscribeConnected(ConnectHandler handler) {
+        this.connectHandler = handler;
+    }
+
+    public void subscribeDrained(DrainHandler handler) {
+        this.drainHandler = handler;
+    }
+
+    /**
+     * A message was received from peer id
+     */
+    public void received(final int id, final Message msg) {
+        final MessageHandler handler = this.handlers.get(msg.type);
+        if(handler == null) {
+            logger.warn("no handler for {} message from {}, dropping it", msg.type, id);
+            msg.release();
+            return;
+        }
+
+        submit(loop(id), new Runnable() {
+            public void run() {
+                try {
+                    handler.onMessage(id, msg);
+                } catch(Exception e) {
+                    logger.error("handling {} message from {} failed", msg.type, id, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * A connection with peer was made
+     */
+    public void connected(final NeighborPeer peer) {
+        final ConnectHandler handler = this.connectHandler;
+        submit(loop(peer.getID()), new Runnable() {
+            public void run() {
+                try {
+                    handler.onConnect(peer);
+                } catch(Exception e) {
+                    logger.error("handling connection of {} failed", peer.getID(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * The queue of messages for peer id drained
+     */
+    public void drained(final int id) {
+        final DrainHandler handler = this.drainHandler;
+        if(handler == null) {
+            return;
+        }
+        submit(loop(id), new Runnable() {
+            public void run() {
+                try {
+                    handler.onDrain(id);
+                } catch(Exception e) {
+                    logger.error("handling drained queue of {} failed", id, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run task on the loop of peer id, after what is already queued for the peer
+     */
+    public void execute(int id, Runnable task) {
+        submit(loop(id), guarded(task));
+    }
+
+    /**
+     * Run task on the first loop
+     */
+    public void execute(Runnable task) {
+        submit(this.loops[0], guarded(task));
+    }
+
+    /**
+     * Stop running handlers and tasks, dropping those still queued. Whatever comes in afterwards is dropped too.
+     * May be called from a handler, as the last thing it does.
+     */
+    public void shutdown() {
+        for(ExecutorService loop : this.loops) {
+            loop.shutdownNow();
+        }
+    }
+
+    private static void submit(ExecutorService loop, Runnable task) {
+        try {
+            loop.execute(task);
+        } catch(RejectedExecutionException e) {
+            logger.debug("dispatcher is shut down, dropping {}", task);
+        }
+    }
+
+    private ExecutorService loop(int id) {
+        return this.loops[(id & Integer.MAX_VALUE) % this.loops.length];
+    }
+
+    // A failing task must not take its loop down
+    private static Runnable guarded(final Runnable task) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    logger.error("task {} failed", task, e);
+                }
+            }
+        };
+    }
+}
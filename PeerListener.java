@@ -3,6 +3,10 @@ import java.io.OutputStream;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.BitSet;
 
@@ -12,28 +16,34 @@ import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.Level;
 
 /**
- * Thread class to listen for new peers
+ * Thread class to listen for new peers. Can also accept them on an event loop instead, see listenOn. Accepted
+ * connections are handed to the TCP transport. The connection manager has it close the listener once every peer with
+ * a higher id is connected.
  */
-public class PeerListener extends Thread {
+public class PeerListener implements Runnable {
 
 	private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
 
 	private Integer myid; // my ID
-	ServerSocket listener;
+	ServerSocketChannel listener;
 	private int num_wait; // number of peers that we should wait for (number of peers with > ids)
-	PeerProcess parent; // the peer process that spawned this
-	FileHandle fH;
+	TcpTransport transport; // takes the accepted connections
 
 	/**
 	 * Constructor. Is called from PeerProcess in order to wait on connections with higher id peers
 	 */
-	public PeerListener(PeerProcess parent, Integer myid, Integer num_wait, ServerSocket listener, FileHandle fH)
-			throws Exception {
-		this.parent = parent;
-		this.fH = fH;
+	public PeerListener(Integer myid, Integer num_wait, ServerSocketChannel listener, TcpTransport transport) {
 		this.myid = myid;
 		this.num_wait = num_wait;
 		this.listener = listener;
+		this.transport = transport;
+	}
+
+	/**
+	 * Start a thread of its own to listen on
+	 */
+	public void start() {
+		Threads.newThread(this, "listener", false).start();
 	}
 
 	/**
@@ -42,18 +52,17 @@ public class PeerListener extends Thread {
 	public void run() {
 
 		// keep listening until heard from all larger id neighbors
-		int num_conn = 0;
 		logger.debug("Peer {} is waiting for {} new peers to contact it", this.myid, this.num_wait);
 		try {
-			while (num_conn < this.num_wait) {
+			while (this.listener.isOpen()) {
 				// Listen for connection from another peer.
-				Socket connection = this.listener.accept();
+				SocketChannel connection = this.listener.accept();
 
 				// Create a separate thread for all future communication w/ this peer
-                PeerConnection.handleConnection(this.myid, connection).start();
-
-				num_conn++;
+				this.transport.accepted(connection);
 			}
+		} catch (ClosedChannelException e) {
+			// Every peer is connected
 		} catch (Exception e) {
 			logger.debug("There was a problem when peer {} was listening for new peers", this.myid);
 			e.printStackTrace();
@@ -62,4 +71,47 @@ public class PeerListener extends Thread {
 		logger.debug("Peer {} has stopped waiting for new peers to contact it", this.myid);
 	}
 
+	/**
+	 * Accept connections on the given event loop instead of a thread. The transport spreads the connections
+	 * across all event loops.
+	 */
+	public void listenOn(final EventLoop loop) {
+		logger.debug("Peer {} is waiting for {} new peers to contact it", this.myid, this.num_wait);
+		if (this.num_wait == 0) {
+			return;
+		}
+
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					loop.register(listener, SelectionKey.OP_ACCEPT, new AcceptHandler());
+				} catch (ClosedChannelException e) {
+					// Every peer is connected already
+				} catch (IOException e) {
+					logger.error("Peer {} could not listen for new peers: {}", myid, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * A new peer is waiting to be accepted, on an event loop
+	 */
+	private class AcceptHandler implements EventLoop.Handler {
+		public void ready(SelectionKey key) {
+			PeerListener l = PeerListener.this;
+			try {
+				SocketChannel connection;
+				while ((connection = l.listener.accept()) != null) {
+					l.transport.accepted(connection);
+				}
+			} catch (ClosedChannelException e) {
+				logger.debug("Peer {} has stopped waiting for new peers to contact it", l.myid);
+			} catch (IOException e) {
+				logger.debug("There was a problem when peer {} was listening for new peers", l.myid);
+				e.printStackTrace();
+			}
+		}
+	}
+
 }
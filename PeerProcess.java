@@ -7,13 +7,13 @@ import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.Level;
-import static com.mycila.event.Topics.*;
-import static com.mycila.event.Topic.*;
-import com.mycila.event.*;
 
 /**
  * Represents the peer that is running on this process
@@ -23,10 +23,16 @@ public class PeerProcess {
     private static final ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) LoggerFactory
         .getLogger("project.networking");
 
-	public static final Dispatcher dispatcher = Dispatchers.asynchronousSafe(ErrorHandlers.rethrow());
+	// Runs the handlers below, made once the config is read
+	private PeerDispatcher dispatcher;
+
+	// Sets up the connections with neighbors, made once the config is read
+	private ConnectionManager connector;
 
     private int myid; // the id of this peer
     private int listenport; // port number this peer listens on
+    private String socketPath = null; // Unix-domain socket this peer listens on, if any
+    private boolean listenTcp = true; // whether it listens on its port too
 
     // Map neighbor peerid to peer
     HashMap<Integer, NeighborPeer> neighbors = new HashMap<Integer, NeighborPeer>();
@@ -40,32 +46,128 @@ public class PeerProcess {
     private int UnchokingInterval;
     private int OptimisticUnchokingInterval;
     private String FileName;
-    private int FileSize;
+    private long FileSize;
     private int PieceSize;
+    // optional: size of the blocks pieces are requested in from peers that take block requests
+    private int BlockSize = 16384;
+    // optional: most requests kept outstanding with one peer
+    private int MaxRequestQueue = 16;
+    // optional: ms to collect completed pieces before announcing them together, 0 to announce each right away
+    private int HaveBatchInterval = 0;
+    // optional: send pieces with FileChannel.transferTo instead of copying them through the heap
+    private boolean ZeroCopySend = true;
+    // optional: write received pieces from the socket straight into the file
+    private boolean ZeroCopyReceive = true;
+    // optional: how the file is kept, "file" (read and written through a channel) or "mapped" (mapped into memory)
+    private String Storage = "file";
+    // optional: when a received piece counts as stored and is announced, "sync" (every write synced to disk),
+    // "batch" (forced to disk every SyncPieces pieces or SyncInterval ms) or "close" (forced on close)
+    private String Durability = "sync";
+    private int SyncPieces = 16;
+    private int SyncInterval = 1000;
+    // optional: file listing the files the pieces span, each with its size. FileName is then the directory they
+    // are in, and FileSize their total.
+    private String FileList = null;
+    private List<MultiFileStorage.Entry> Files = null;
+    // optional: bytes of often sent pieces to keep in memory, 0 for none, and whether to keep them off the heap
+    private long PieceCacheSize = 0;
+    private boolean PieceCacheOffHeap = false;
+    // optional: threads doing the disk reads and writes of the handlers, 0 to do them on the handlers' threads
+    private int DiskThreads = 0;
+    // optional: threads doing all connections' I/O with selectors, 0 for a thread per connection
+    private int EventLoopThreads = 0;
+    // optional: run connections, and the disk reads and writes of the handlers, on virtual threads (Java 21 and
+    // later) rather than platform threads
+    private boolean VirtualThreads = false;
+    // Virtual threads doing the disk reads and writes when VirtualThreads is set and DiskThreads is not
+    private static final int VIRTUAL_DISK_THREADS = 64;
+    // optional: threads running the handlers, each peer's events always on the same one
+    private int DispatcherThreads = 1;
+    // optional: ms a connection attempt may take, and ms the handshake may take after that
+    private int ConnectTimeout = 3000;
+    private int HandshakeTimeout = 5000;
+    // optional: times a failed connection attempt is retried, waiting longer each time
+    private int ConnectRetries = 20;
+    // optional: bytes of pieces queued for a neighbor before its requests wait
+    private int SendQueueLimit = 1048576;
+    // optional: ms a neighbor's queue may stay full before it is choked, and before it is dropped (0 for never)
+    private int SlowPeerTimeout = 10000;
+    private int SlowPeerDropTimeout = 0;
+    // optional: bytes per second sent in total and to each neighbor, 0 for no limit (re-read while running)
+    private long UploadLimit = 0;
+    private long PeerUploadLimit = 0;
+    // optional: bytes per second requested in total and from each neighbor, 0 for no limit (re-read while running)
+    private long DownloadLimit = 0;
+    private long PeerDownloadLimit = 0;
+    // optional: how peers are connected, "tcp" or "memory" (with the other peers run in the same process)
+    private String Transport = "tcp";
+    // optional: directory of the Unix-domain sockets neighbors on this host are connected over, none for TCP only
+    private String UnixSocketDir = null;
+
+    // Event loops connections are spread across, or null for a thread per connection
+    private EventLoop[] loops = null;
 
     // Controls when we should re-determine preferred neighbors
     private Timer chokeTimer;
     // When we should optimistically unchoke one neighbor
     private Timer optimisticTimer;
+    // When pieces completed since the last time should be announced (if batching)
+    private Timer haveTimer;
+    // When requests held back by a bandwidth limit may go
+    private Timer throttleTimer;
+    // When requests sent to neighbors time out
+    private TimingWheel<SentRequest> requestTimeouts;
+
+    // Limit what we send and request, and the neighbors waiting for them
+    private final Throttle upload = new Throttle();
+    private final Throttle download = new Throttle();
+    private final Set<Integer> uploadWaiting = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Set<Integer> downloadWaiting = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    // When Common.cfg was last read (ms), to pick up changed limits
+    private long commonCfgModified;
+
+    // Pieces completed and not yet announced to neighbors (if batching)
+    private final ArrayList<Integer> pendingHaves = new ArrayList<Integer>();
+    // Neighbors we skipped have messages for, because they already had the piece
+    private final Set<Integer> suppressedHaves =
+        Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    // Whether shutting down has begun, and counted down once done
+    private boolean completing = false;
+    private final CountDownLatch done = new CountDownLatch(1);
 
     // Number of peers to wait for contact from (ids greater than my id)
     private int num_wait;
 
-    private boolean hasFile; // whether we start with the file or not
+    private volatile boolean hasFile; // whether we start with the file or not
     FileHandle fH;
+    private DiskIO disk; // does the handlers' disk I/O, or null to do it on their threads
+
+    // The maps below are used from all dispatcher threads. Entries for a neighbor are changed by that neighbor's
+    // handlers, and by the interval handlers (on the first dispatcher thread).
 
     // Status of neighbors (Choked, Unchoked, or Optimistic)
-    private HashMap<Integer, PeerStatus> neighborStatus = new HashMap<Integer, PeerStatus>();
+    private ConcurrentHashMap<Integer, PeerStatus> neighborStatus = new ConcurrentHashMap<Integer, PeerStatus>();
 
     // Status of neighbors as far as interested in this peers file pieces
-    private HashMap<Integer, PeerInterestedStatus> neighborInterestedStatus = new HashMap<Integer,
+    private ConcurrentHashMap<Integer, PeerInterestedStatus> neighborInterestedStatus = new ConcurrentHashMap<Integer,
         PeerInterestedStatus>();
 
     // Status of self that the neighbor has (same statuses as above) 
-    private HashMap<Integer, PeerStatus> selfStatus = new HashMap<Integer, PeerStatus>();
+    private ConcurrentHashMap<Integer, PeerStatus> selfStatus = new ConcurrentHashMap<Integer, PeerStatus>();
 
     // Number of bytes sent in previous interval
-    private HashMap<Integer, Integer> neighborVolume = new HashMap<Integer, Integer>();
+    private ConcurrentHashMap<Integer, AtomicInteger> neighborVolume = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    // Requests from each neighbor waiting for its send queue to drain, oldest first (only used by the neighbor's
+    // handlers)
+    private ConcurrentHashMap<Integer, ArrayDeque<FileHandle.Block>> waitingRequests =
+        new ConcurrentHashMap<Integer, ArrayDeque<FileHandle.Block>>();
+    private static final int MAX_WAITING_REQUESTS = 256;
+
+    // Requests outstanding with each neighbor, and how many there should be (only used by the neighbor's handlers)
+    private ConcurrentHashMap<Integer, RequestPipeline> pipelines = new ConcurrentHashMap<Integer, RequestPipeline>();
 
     private enum PeerStatus {
         Choked, Unchoked, Optimistic;
@@ -78,27 +180,38 @@ public class PeerProcess {
     // For choosing optimistically unchoked neighbor
     Random rand;
 
+    // When this peer started (ms), to tell how long the download took
+    private long startTime;
+
 	/**
 	 * Main function: Starting point
 	 */
 	public static void main(String[] args) throws Exception {
-		// Get ID of this peer from input
-		int id = Integer.parseInt(args[0]);
-
-		// Create and initialize this peer's instance
-		PeerProcess p = new PeerProcess(id);
-
-		// Separate thread to listen for new connections
-		// Peer connections spawn from either here or connectNeighbors
-		// Should receive connection from each of peers with higher id
-		p.listenForConnection();
+		// Get ID of this peer from input. Several can be given to run those peers in this process, which is what
+		// the memory transport is for.
+		PeerProcess[] peers = new PeerProcess[args.length];
+		for (int i = 0; i < args.length; i++) {
+			// Create and initialize this peer's instance
+			peers[i] = new PeerProcess(Integer.parseInt(args[i]));
+		}
 
-		// Start connections with neighbors w/ peerid lower than myid
-		p.connectNeighbors();
+		for (PeerProcess p : peers) {
+			// Separate thread to listen for new connections
+			// Peer connections spawn from either here or connectNeighbors
+			// Should receive connection from each of peers with higher id
+			p.listenForConnection();
+		}
 
-		// TODO: File torrenting here ...
+		for (PeerProcess p : peers) {
+			// Start connections with neighbors w/ peerid lower than myid
+			p.connectNeighbors();
+		}
 
-		return;
+		// Exit once every peer is done
+		for (PeerProcess p : peers) {
+			p.done.await();
+		}
+		System.exit(0);
 	}
 
 	/**
@@ -116,16 +229,64 @@ public class PeerProcess {
 
 		// peer id
 		this.myid = id;
+		this.startTime = System.currentTimeMillis();
 
 		// Read in config files
 		readCommonCfgFile();
 		readPeerInfoCfgFile();
+		setLimits();
+
+		dispatcher = new PeerDispatcher(this.DispatcherThreads);
+
+		if (this.VirtualThreads && !Threads.useVirtual()) {
+			logger.warn("VirtualThreads needs Java 21 or later, using platform threads (self = {})", this.myid);
+			this.VirtualThreads = false;
+		}
 
 		// Create file-handle instance
 		this.fH = new FileHandle(this.myid, this.hasFile, this.FileName, this.FileSize,
-                   this.PieceSize, this.neighbors.keySet());		
+                   this.PieceSize, this.BlockSize, this.neighbors.keySet(), this.Storage,
+                   this.Durability, this.SyncPieces, this.SyncInterval, this.Files);
+		if (this.Files != null && this.Storage.equals("mapped")) {
+			logger.warn("Storage mapped is not used with FileList, the files are read and written through channels"
+				+ " (self = {})", this.myid);
+		}
+		if (this.PieceCacheSize > 0) {
+			if (this.Storage.equals("mapped") && this.Files == null) {
+				// Pieces are sent from the mapping, which is in memory already
+				logger.warn("PieceCacheSize is not used with mapped storage (self = {})", this.myid);
+			} else {
+				this.fH.setPieceCache(new PieceCache(this.PieceCacheSize, this.PieceCacheOffHeap, this.PieceSize));
+			}
+		}
+		if (this.VirtualThreads && this.DiskThreads == 0) {
+			// The blocking disk calls of the handlers go to virtual threads too, rather than holding up theirs
+			this.DiskThreads = VIRTUAL_DISK_THREADS;
+		}
+		if (this.DiskThreads > 0) {
+			this.disk = new DiskIO(this.fH, this.PieceSize, this.DiskThreads, new DiskReader());
+		}
 		this.rand = new Random(System.currentTimeMillis());
-		
+
+		if (this.EventLoopThreads > 0 && this.Transport.equals("tcp")) {
+			this.loops = new EventLoop[this.EventLoopThreads];
+			for (int i = 0; i < this.loops.length; i++) {
+				this.loops[i] = new EventLoop(String.format("event-loop-%d", i));
+				this.loops[i].start();
+			}
+		}
+
+		connector = new ConnectionManager(this.myid, this.neighbors, dispatcher,
+				this.ConnectTimeout, this.HandshakeTimeout, this.ConnectRetries, this.SendQueueLimit,
+				this.maxMessageLength());
+		if (this.Transport.equals("memory")) {
+			connector.use(new MemoryTransport(connector));
+		} else {
+			useUnixSockets();
+			connector.use(new TcpTransport(connector, this.receiveFileHandle(), this.loops, this.ConnectTimeout,
+					this.socketPath, this.listenTcp));
+		}
+
 		// register event handlers
 		registerHandlers();
 		registerTimers();
@@ -139,9 +300,10 @@ public class PeerProcess {
 	}
     
 	/**
-	 * Start connection with each neighbor with ID less than myid
+	 * Start connection with each neighbor with ID less than myid. The connections are made in parallel, and retried
+	 * until the neighbor is up.
 	 */
-	private void connectNeighbors() throws IOException {
+	private void connectNeighbors() {
 
 		logger.debug("connecting to peers with lower ids");
 
@@ -156,8 +318,7 @@ public class PeerProcess {
 
 			// Contact peers if lower peerid
 			if (pid < this.myid) {
-				NeighborPeer peer = this.neighbors.get(pid);
-				PeerConnection.connectTo(this.myid, peer).start();
+				connector.connect(this.neighbors.get(pid));
 			}
 		}
 
@@ -188,9 +349,17 @@ public class PeerProcess {
 					String hostname = split_line[1];
 					int port = Integer.parseInt(split_line[2]);
 
+					// A host of unix:<path> is a Unix-domain socket on this host
+					String path = null;
+					if (hostname.startsWith("unix:")) {
+						path = hostname.substring("unix:".length());
+						hostname = "localhost";
+					}
+
 					// Is this peer self or not
 					if (id != this.myid) {
 						NeighborPeer nbr = new NeighborPeer(id, port, hostname);
+						nbr.setSocketPath(path);
 						// Add neighboring peers' info to NeighborPeer hash-map
 						this.neighbors.put(id, nbr);
                                                 // All neighbors start out as choked
@@ -202,8 +371,10 @@ public class PeerProcess {
 							this.num_wait++;
 						}
 					} else {
-						// Set current peer's port number
+						// Set current peer's port number, or socket path
 						this.listenport = port;
+						this.socketPath = path;
+						this.listenTcp = (path == null);
 						// Whether it has the file or not
 						this.hasFile = (Integer.parseInt(split_line[3]) == 1);
 					}
@@ -253,11 +424,99 @@ public class PeerProcess {
 					this.FileName = split_line[1];
 					break;
 				case "FileSize":
-					this.FileSize = Integer.parseInt(split_line[1]);
+					this.FileSize = Long.parseLong(split_line[1]);
 					break;
 				case "PieceSize":
 					this.PieceSize = Integer.parseInt(split_line[1]);
 					break;
+				case "BlockSize":
+					this.BlockSize = Integer.parseInt(split_line[1]);
+					break;
+				case "MaxRequestQueue":
+					this.MaxRequestQueue = Integer.parseInt(split_line[1]);
+					break;
+				case "HaveBatchInterval":
+					this.HaveBatchInterval = Integer.parseInt(split_line[1]);
+					break;
+				case "DispatcherThreads":
+					this.DispatcherThreads = Integer.parseInt(split_line[1]);
+					break;
+				case "VirtualThreads":
+					this.VirtualThreads = Boolean.parseBoolean(split_line[1]);
+					break;
+				case "ConnectTimeout":
+					this.ConnectTimeout = Integer.parseInt(split_line[1]);
+					break;
+				case "HandshakeTimeout":
+					this.HandshakeTimeout = Integer.parseInt(split_line[1]);
+					break;
+				case "ConnectRetries":
+					this.ConnectRetries = Integer.parseInt(split_line[1]);
+					break;
+				case "SendQueueLimit":
+					this.SendQueueLimit = Integer.parseInt(split_line[1]);
+					break;
+				case "SlowPeerTimeout":
+					this.SlowPeerTimeout = Integer.parseInt(split_line[1]);
+					break;
+				case "SlowPeerDropTimeout":
+					this.SlowPeerDropTimeout = Integer.parseInt(split_line[1]);
+					break;
+				case "UploadLimit":
+				case "PeerUploadLimit":
+				case "DownloadLimit":
+				case "PeerDownloadLimit":
+					readLimit(split_line);
+					break;
+				case "EventLoopThreads":
+					this.EventLoopThreads = Integer.parseInt(split_line[1]);
+					break;
+				case "UnixSocketDir":
+					this.UnixSocketDir = split_line[1];
+					break;
+				case "Transport":
+					this.Transport = split_line[1].toLowerCase();
+					if (!this.Transport.equals("tcp") && !this.Transport.equals("memory")) {
+						throw new Exception("unknown transport " + split_line[1]);
+					}
+					break;
+				case "ZeroCopySend":
+					this.ZeroCopySend = Boolean.parseBoolean(split_line[1]);
+					break;
+				case "ZeroCopyReceive":
+					this.ZeroCopyReceive = Boolean.parseBoolean(split_line[1]);
+					break;
+				case "Storage":
+					this.Storage = split_line[1].toLowerCase();
+					if (!this.Storage.equals("file") && !this.Storage.equals("mapped")) {
+						throw new Exception("unknown storage " + split_line[1]);
+					}
+					break;
+				case "Durability":
+					this.Durability = split_line[1].toLowerCase();
+					if (!this.Durability.equals("sync") && !this.Durability.equals("batch")
+							&& !this.Durability.equals("close")) {
+						throw new Exception("unknown durability " + split_line[1]);
+					}
+					break;
+				case "SyncPieces":
+					this.SyncPieces = Integer.parseInt(split_line[1]);
+					break;
+				case "SyncInterval":
+					this.SyncInterval = Integer.parseInt(split_line[1]);
+					break;
+				case "PieceCacheSize":
+					this.PieceCacheSize = Long.parseLong(split_line[1]);
+					break;
+				case "PieceCacheOffHeap":
+					this.PieceCacheOffHeap = Boolean.parseBoolean(split_line[1]);
+					break;
+				case "DiskThreads":
+					this.DiskThreads = Integer.parseInt(split_line[1]);
+					break;
+				case "FileList":
+					this.FileList = split_line[1];
+					break;
 				}
 
 				line = reader.readLine();
@@ -265,6 +524,15 @@ public class PeerProcess {
 
 			reader.close();
 
+			if (this.FileList != null) {
+				this.Files = MultiFileStorage.readList(this.FileList);
+				this.FileSize = MultiFileStorage.totalSize(this.Files);
+			}
+			if (this.FileSize <= 0 || (this.FileSize + this.PieceSize - 1) / this.PieceSize > Integer.MAX_VALUE) {
+				throw new Exception("FileSize " + this.FileSize + " makes too many or no pieces of "
+					+ this.PieceSize + " bytes");
+			}
+
 		} catch (Exception e) {
 			logger.error("Error reading common file");
 			e.printStackTrace();
@@ -274,16 +542,117 @@ public class PeerProcess {
 		logger.debug("done reading common config");
 	}
 
+	// Set one of the bandwidth limits from a config line
+	private void readLimit(String[] split_line) {
+		switch (split_line[0]) {
+		case "UploadLimit":
+			this.UploadLimit = Long.parseLong(split_line[1]);
+			break;
+		case "PeerUploadLimit":
+			this.PeerUploadLimit = Long.parseLong(split_line[1]);
+			break;
+		case "DownloadLimit":
+			this.DownloadLimit = Long.parseLong(split_line[1]);
+			break;
+		case "PeerDownloadLimit":
+			this.PeerDownloadLimit = Long.parseLong(split_line[1]);
+			break;
+		}
+	}
+
+	// Apply the bandwidth limits read from the config
+	private void setLimits() {
+		this.commonCfgModified = new File(commonCfgFileName).lastModified();
+		this.upload.setRates(this.UploadLimit, this.PeerUploadLimit);
+		this.download.setRates(this.DownloadLimit, this.PeerDownloadLimit);
+	}
+
+	/**
+	 * Read the bandwidth limits again if the config file changed. The other settings keep the values read at start.
+	 */
+	private void reloadLimits() {
+		if (new File(commonCfgFileName).lastModified() == this.commonCfgModified) {
+			return;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(commonCfgFileName));
+			this.UploadLimit = this.PeerUploadLimit = this.DownloadLimit = this.PeerDownloadLimit = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] split_line = line.split(" ");
+				if (split_line.length > 1) {
+					readLimit(split_line);
+				}
+			}
+			reader.close();
+		} catch (Exception e) {
+			logger.error("Error reading common file, keeping bandwidth limits: {}", e.toString());
+			return;
+		}
+
+		setLimits();
+		logger.info("Peer {} has new bandwidth limits (B/s, 0 for none): upload {} ({} per peer), download {} ({} per peer).",
+				myid, UploadLimit, PeerUploadLimit, DownloadLimit, PeerDownloadLimit);
+	}
+
 	/**
 	 * Listens for other neighbors to connect. Since only the peers with peerid greater than myid will send request,
 	 * this Thread is responsible for listening to such connection requests
 	 */
 	public void listenForConnection() throws Exception {
 
-		ServerSocket listener = new ServerSocket(this.listenport);
-
 		logger.debug("Peer {} is beginning PeerListener", this.myid);
-		new PeerListener(this, this.myid, this.num_wait, listener, this.fH).start();
+		connector.listen(this.listenport);
+	}
+
+	/**
+	 * Decide which neighbors are connected to over Unix-domain sockets: those given a socket path in PeerInfo.cfg,
+	 * and with UnixSocketDir set, all others on this host. If the JDK has no Unix-domain sockets, all of them are
+	 * connected to over TCP instead.
+	 */
+	private void useUnixSockets() {
+		if (this.UnixSocketDir != null) {
+			if (this.socketPath == null) {
+				this.socketPath = new File(this.UnixSocketDir, "peer_" + this.myid + ".sock").getPath();
+			}
+			for (NeighborPeer nbr : this.neighbors.values()) {
+				if (nbr.getSocketPath() == null && nbr.isLocal()) {
+					nbr.setSocketPath(new File(this.UnixSocketDir, "peer_" + nbr.getID() + ".sock").getPath());
+				}
+			}
+		}
+
+		boolean any = (this.socketPath != null);
+		for (NeighborPeer nbr : this.neighbors.values()) {
+			any |= (nbr.getSocketPath() != null);
+		}
+		if (any && !UnixSockets.available()) {
+			logger.warn("Unix-domain sockets need Java 16 or later, using TCP (self = {})", this.myid);
+			this.socketPath = null;
+			this.listenTcp = true;
+			for (NeighborPeer nbr : this.neighbors.values()) {
+				nbr.setSocketPath(null);
+			}
+		}
+	}
+
+	/**
+	 * Longest payload a neighbor sends in one message: a piece with its index and offset, a MultiHave for every
+	 * piece, or a MultiRequest for as many blocks as it may have requested
+	 */
+	private int maxMessageLength() {
+		long pieces = this.fH.maxPiece();
+		long longest = Math.max(this.PieceSize + 8L, 4 * pieces);
+		longest = Math.max(longest, 12L * Math.max(this.MaxRequestQueue, RequestPipeline.MIN_DEPTH));
+		return (int) Math.min(longest, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * File handle that connections receive pieces straight into, or null if pieces should be read into memory
+	 */
+	private FileHandle receiveFileHandle() {
+		return this.ZeroCopyReceive ? this.fH : null;
 	}
 
     /**
@@ -296,22 +665,37 @@ public class PeerProcess {
      * receieved, and to send messages to peers.
      */
     private void registerHandlers() {
-        dispatcher.subscribe(topic("connected"), NeighborPeer.class, new ConnectedHandler());
-        dispatcher.subscribe(topic("interval/unchoke"), Boolean.class, new UnchokeIntervalHandler());
-        dispatcher.subscribe(topic("interval/optimistic"), Boolean.class, new OptimisticIntervalHandler());
-        dispatcher.subscribe(topic("complete"), Boolean.class, new CompleteHandler());
+        dispatcher.subscribeConnected(new ConnectedHandler());
+        dispatcher.subscribeDrained(new DrainedHandler());
 
         // message receipt
-        dispatcher.subscribe(topic("recv/bitfield"), PeerConnection.PeerMessage.class, new BitfieldHandler());
-        dispatcher.subscribe(topic("recv/choke"), PeerConnection.PeerMessage.class, new ChokeHandler());
-        dispatcher.subscribe(topic("recv/unchoke"), PeerConnection.PeerMessage.class, new UnchokeHandler());
-        dispatcher.subscribe(topic("recv/interested"), PeerConnection.PeerMessage.class,
-            new InterestedHandler());
-        dispatcher.subscribe(topic("recv/not-interested"), PeerConnection.PeerMessage.class,
-            new NotInterestedHandler());
-        dispatcher.subscribe(topic("recv/request"), PeerConnection.PeerMessage.class, new RequestHandler());
-        dispatcher.subscribe(topic("recv/piece"), PeerConnection.PeerMessage.class, new PieceHandler());
-        dispatcher.subscribe(topic("recv/have"), PeerConnection.PeerMessage.class, new HaveHandler());
+        BitfieldHandler bitfield = new BitfieldHandler();
+        dispatcher.subscribe(Message.Type.Bitfield, bitfield);
+        dispatcher.subscribe(Message.Type.HaveAll, bitfield);
+        dispatcher.subscribe(Message.Type.HaveNone, bitfield);
+        dispatcher.subscribe(Message.Type.CompactBitfield, bitfield);
+        dispatcher.subscribe(Message.Type.Choke, new ChokeHandler());
+        dispatcher.subscribe(Message.Type.Unchoke, new UnchokeHandler());
+        dispatcher.subscribe(Message.Type.Interested, new InterestedHandler());
+        dispatcher.subscribe(Message.Type.NotInterested, new NotInterestedHandler());
+        RequestHandler request = new RequestHandler();
+        dispatcher.subscribe(Message.Type.Request, request);
+        dispatcher.subscribe(Message.Type.BlockRequest, request);
+        dispatcher.subscribe(Message.Type.MultiRequest, request);
+        dispatcher.subscribe(Message.Type.Cancel, new CancelHandler());
+        PieceHandler piece = new PieceHandler();
+        dispatcher.subscribe(Message.Type.Piece, piece);
+        dispatcher.subscribe(Message.Type.Block, piece);
+        HaveHandler have = new HaveHandler();
+        dispatcher.subscribe(Message.Type.Have, have);
+        dispatcher.subscribe(Message.Type.MultiHave, have);
+
+        // pieces stored, announced after whatever is queued for the peer they came from
+        fH.setPieceListener(new FileHandle.PieceListener() {
+            public void pieceStored(int pieceIdx, int peerid) {
+                dispatcher.execute(peerid, new PieceStoredHandler(pieceIdx));
+            }
+        });
 
         logger.debug("Message handlers for peer {} have been registered.", this.myid);
     }
@@ -320,16 +704,26 @@ public class PeerProcess {
     /**
      * Deal with a new connection (could be initiated by either peer) 
      */
-    private class ConnectedHandler implements Subscriber<NeighborPeer> {
-        public void onEvent(Event<NeighborPeer> event) {
+    private class ConnectedHandler implements PeerDispatcher.ConnectHandler {
+        public void onConnect(NeighborPeer peer) {
 
             //Initialize volume score
-            neighborVolume.put(event.getSource().getID(), 0);
+            neighborVolume.put(peer.getID(), new AtomicInteger(0));
+
+            // Record which protocol extensions we can use with this peer
+            neighbors.get(peer.getID()).setExtensions(peer.getExtensions());
 
             // new connection, we need to send this peer our bitfield
-            // TODO: Only send bitfield if we have a non-empty one
 
-            if (fH.isBitfieldEmpty()) {
+            if (neighbors.get(peer.getID()).supports(NeighborPeer.EXT_COMPACT_BITFIELD)) {
+
+               // send bitfield in its smallest form, including have none
+               message(peer.getID(), Message.bitfield(fH.getBitfield(), fH.maxPiece(), true));
+
+               logger.debug("Sent {} compact bitfield {} (self={}).", peer.getID(),
+                  fH.printableBitfield(), PeerProcess.this.myid);
+            }
+            else if (fH.isBitfieldEmpty()) {
 
                // don't send bitfield if empty
                logger.debug("Bitfield is empty, will not send (self={})", myid);
@@ -337,47 +731,68 @@ public class PeerProcess {
             else {
 
                // send bitfield
-               message(event.getSource().getID(), Message.bitfield(PeerProcess.this.fH.getBitfield()));
+               message(peer.getID(), Message.bitfield(PeerProcess.this.fH.getBitfield()));
 
-               logger.debug("Sent {} bitfield {} (self={}).", event.getSource().getID(),
+               logger.debug("Sent {} bitfield {} (self={}).", peer.getID(),
                   fH.printableBitfield(), PeerProcess.this.myid);
             }
 
             // Since this is a new neighbor, we should make sure it is set as choked
-            neighborStatus.put(event.getSource().getID(), PeerStatus.Choked);
+            neighborStatus.put(peer.getID(), PeerStatus.Choked);
         }
     }
 
     /**
      * Received a bitfield from a peer
      */
-    private class BitfieldHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
+    private class BitfieldHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
 
             // Get peer's bitfield
-            BitSet peerBitfield = ((Message.BitfieldPayload)event.getSource().msg.getPayload()).bitfield;
+            BitSet peerBitfield;
+            if (msg.type == Message.Type.HaveAll) {
+                peerBitfield = new BitSet(fH.maxPiece());
+                peerBitfield.set(0, fH.maxPiece());
+            } else if (msg.type == Message.Type.HaveNone) {
+                peerBitfield = new BitSet(fH.maxPiece());
+            } else {
+                try {
+                    peerBitfield = ((Message.BitfieldPayload)msg.getPayload()).bitfield(fH.maxPiece());
+                } catch (IOException e) {
+                    logger.warn("Ignoring bad bitfield from {}: {} (self = {})", id, e.getMessage(),
+                        PeerProcess.this.myid);
+                    return;
+                } finally {
+                    msg.release();
+                }
+            }
 
             logger.debug("Received bitfield {} from {} (self = {}).",
-                PeerProcess.this.fH.printableBitSet(peerBitfield), event.getSource().id,
+                PeerProcess.this.fH.printableBitSet(peerBitfield), id,
                 PeerProcess.this.myid);
 
             // Record the peer's bitfield
-            PeerProcess.this.fH.setBitfield(event.getSource().id, peerBitfield);
+            PeerProcess.this.fH.setBitfield(id, peerBitfield);
 
-            if(PeerProcess.this.fH.checkInterest(event.getSource().id)) {
+            // A peer that finished without announcing every piece sends its bitfield again
+            if(PeerProcess.this.fH.allComplete()) {
+                dispatcher.execute(new CompleteHandler());
+            }
+
+            if(PeerProcess.this.fH.checkInterest(id)) {
 
                 // We are interested in this bitfield
-                message(event.getSource().id, Message.empty(Message.Type.Interested));
+                message(id, Message.empty(Message.Type.Interested));
 
                 logger.debug("Interested in bitfield from {} (self = {}).",
-                    event.getSource().id, PeerProcess.this.myid);
+                    id, PeerProcess.this.myid);
             } else {
 
                 // Not interested
-                message(event.getSource().id, Message.empty(Message.Type.NotInterested));
+                message(id, Message.empty(Message.Type.NotInterested));
 
                 logger.debug("Not interested in bitfield from {} (self = {}).",
-                    event.getSource().id, PeerProcess.this.myid);
+                    id, PeerProcess.this.myid);
             }
         }
     }
@@ -385,54 +800,196 @@ public class PeerProcess {
     /**
      * Deal with a choke message from a peer (that peer choked this one)
      */    
-    private class ChokeHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
+    private class ChokeHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
 
             // Add this status
-            selfStatus.put(event.getSource().id, PeerStatus.Choked);
-
-            // TODO: cancel request timer
+            selfStatus.put(id, PeerStatus.Choked);
 
-            logger.info("Peer {} is choked by {}.",  myid, event.getSource().id);
-            fH.cancelPieceIndexRequest(event.getSource().id);
+            // Timeouts of the requests find nothing outstanding and do nothing
+            logger.info("Peer {} is choked by {}.",  myid, id);
+            fH.cancelBlockRequests(id);
+            pipeline(id).clear();
         }
     }
 
     /**
-     * Request piece of file from peer with id peer
+     * Request pieces of file from peer with id peer, as many as its pipeline has room for. Peers that take block
+     * requests are asked for blocks, which may be parts of a piece other peers are sending blocks of too. If the peer
+     * takes them, all requests go out in one MultiRequest message.
      */
     private void requestPiece(int peer) {
 
-        // which piece we want to request from this peer
-        Integer idx = fH.getPieceIndexToReceive(peer);
+        NeighborPeer neighbor = neighbors.get(peer);
+        RequestPipeline pipeline = pipeline(peer);
+        boolean wholePieces = !neighbor.supports(NeighborPeer.EXT_BLOCKS);
+        int depth = pipeline.depth(Math.min(BlockSize, PieceSize));
+
+        // which blocks we want to request from this peer
+        ArrayList<FileHandle.Block> blocks = new ArrayList<FileHandle.Block>();
+        while(fH.numRequested(peer) < depth) {
+            long delay = download.delay(peer);
+            if(delay > 0) {
+                // over the download limit, request more later
+                retryRequests(peer, delay);
+                break;
+            }
+            FileHandle.Block block = fH.getBlockToReceive(peer, wholePieces);
+            if(block == null) {
+                break;
+            }
+            download.take(peer, block.length);
+            blocks.add(block);
+        }
 
-        if(idx < 0) {
+        if(blocks.isEmpty()) {
 
-            // don't need pieces from this peer (or at all)
+            // don't need pieces from this peer (or at all), or the pipeline is full
             logger.debug("Not requesting any pieces from {} (self = {})", peer, this.myid);
-        } else {
+            return;
+        }
 
-            // request piece
-            message(peer, Message.index(Message.Type.Request, idx));
-            logger.debug("requesting piece {} from {} (self = {})", idx, peer, this.myid);
+        long now = System.currentTimeMillis();
+        long timeout = pipeline.timeout();
+        for(FileHandle.Block block : blocks) {
+            pipeline.requested(block.piece, block.offset, now);
+            requestTimeouts.schedule(new SentRequest(peer, block, now), timeout);
+        }
+
+        if(blocks.size() > 1 && neighbor.supports(NeighborPeer.EXT_MULTI_REQUEST)) {
+
+            // request them all at once
+            message(peer, Message.multiRequest(blocks));
+            logger.debug("requesting blocks {} from {} (depth = {}, self = {})", blocks, peer, depth, this.myid);
+            return;
+        }
+
+        for(FileHandle.Block block : blocks) {
+            if(block.wholePiece) {
 
-            // TODO: start timer that cancels the request.
+                // request piece
+                message(peer, Message.index(Message.Type.Request, block.piece));
+                logger.debug("requesting piece {} from {} (self = {})", block.piece, peer, this.myid);
+            } else {
+
+                // request part of a piece
+                message(peer, Message.blockRequest(block.piece, block.offset, block.length));
+                logger.debug("requesting block {} from {} (self = {})", block, peer, this.myid);
+            }
         }
     }
 
+    /**
+     * A request sent to a neighbor, to time it out
+     */
+    private static class SentRequest {
+        final int peer;
+        final FileHandle.Block block;
+        final long sent; // when (ms)
+
+        SentRequest(int peer, FileHandle.Block block, long sent) {
+            this.peer = peer;
+            this.block = block;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * Deal with a request timing out, on the dispatcher thread of its peer
+     */
+    private class RequestTimeoutHandler implements TimingWheel.Expired<SentRequest> {
+        public void expired(final SentRequest request) {
+            dispatcher.execute(request.peer, new Runnable() {
+                public void run() {
+                    requestTimedOut(request);
+                }
+            });
+        }
+    }
+
+    /**
+     * Give up on a request that was not answered in time and ask another peer that has the piece, if there is one
+     */
+    private void requestTimedOut(SentRequest request) {
+        int peer = request.peer;
+        FileHandle.Block block = request.block;
+        if(!pipeline(peer).timedOut(block.piece, block.offset, request.sent)) {
+            // answered, or forgotten after a choke
+            return;
+        }
+
+        fH.cancelBlockRequest(peer, block.piece, block.offset);
+        logger.debug("request for block {} from {} timed out (self = {})", block, peer, this.myid);
+
+        boolean asked = false;
+        for(final Integer other : neighbors.keySet()) {
+            if(other != peer && selfStatus.get(other) == PeerStatus.Unchoked
+                    && fH.peerHasPiece(other, block.piece)) {
+                dispatcher.execute(other, new Runnable() {
+                    public void run() {
+                        if(selfStatus.get(other) == PeerStatus.Unchoked) {
+                            requestPiece(other);
+                        }
+                    }
+                });
+                asked = true;
+            }
+        }
+        if(!asked && selfStatus.get(peer) == PeerStatus.Unchoked) {
+            // nobody else has it for us, try them again
+            requestPiece(peer);
+        }
+    }
+
+    /**
+     * Request pieces from peer in delay ms, unless that is already going to happen
+     */
+    private void retryRequests(final int peer, long delay) {
+        if(!downloadWaiting.add(peer)) {
+            return;
+        }
+        throttleTimer.schedule(new TimerTask() {
+            public void run() {
+                dispatcher.execute(peer, new Runnable() {
+                    public void run() {
+                        downloadWaiting.remove(peer);
+                        if(selfStatus.get(peer) == PeerStatus.Unchoked) {
+                            requestPiece(peer);
+                        }
+                    }
+                });
+            }
+        }, delay);
+    }
+
+    /**
+     * Request pipeline of neighbor with id peer
+     */
+    private RequestPipeline pipeline(int peer) {
+        RequestPipeline pipeline = pipelines.get(peer);
+        if(pipeline == null) {
+            pipeline = new RequestPipeline(MaxRequestQueue);
+            RequestPipeline had = pipelines.putIfAbsent(peer, pipeline);
+            if(had != null) {
+                pipeline = had;
+            }
+        }
+        return pipeline;
+    }
+
     /**
      * Deal with unchoke message from a peer (that peer unchoked this one)
      */
-    private class UnchokeHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
+    private class UnchokeHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
 
             // Change status of self wrt peer
-            selfStatus.put(event.getSource().id, PeerStatus.Unchoked);
+            selfStatus.put(id, PeerStatus.Unchoked);
 
-            logger.info("Peer {} is unchoked by {}.", myid, event.getSource().id);
+            logger.info("Peer {} is unchoked by {}.", myid, id);
 
             // Now that we are unchoked, request a piece of the file
-            requestPiece(event.getSource().id);
+            requestPiece(id);
 
         }
     }
@@ -440,25 +997,25 @@ public class PeerProcess {
     /**
      * Deal with interested message from a peer
      */
-    private class InterestedHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
+    private class InterestedHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
 
-            neighborInterestedStatus.put(event.getSource().id,
+            neighborInterestedStatus.put(id,
                 PeerInterestedStatus.Interested);
             logger.info("Peer {} received the 'interested' message from {}.",
-                myid, event.getSource().id);
+                myid, id);
         }
     }
 
     /**
      * Deal with not-interested message from a peer
      */
-    private class NotInterestedHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
-            neighborInterestedStatus.put(event.getSource().id,
+    private class NotInterestedHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
+            neighborInterestedStatus.put(id,
                 PeerInterestedStatus.NotInterested);
             logger.info("Peer {} received the 'not interested' message from {}",
-                myid, event.getSource().id);
+                myid, id);
 
         }
     }
@@ -467,133 +1024,488 @@ public class PeerProcess {
     /**
      * Deal with a piece request from a peer
      */
-    private class RequestHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
+    private class RequestHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
+
+            // Which piece did they request, and which part of it for a block request
+            Integer idx;
+            int offset = 0;
+            int length = -1; // whole piece
+
+            if(msg.type == Message.Type.MultiRequest) {
+                // Serve each of them as a block request
+                Message.MultiRequestPayload requests = (Message.MultiRequestPayload)msg.getPayload();
+                for(int i = 0; i < requests.count; i++) {
+                    serveRequest(id, requests.index(i), requests.offset(i), requests.length(i));
+                }
+                msg.release();
+                return;
+            } else if(msg.type == Message.Type.BlockRequest) {
+                Message.BlockRequestPayload request = (Message.BlockRequestPayload)msg.getPayload();
+                idx = request.index;
+                offset = request.offset;
+                length = request.length;
+            } else {
+                idx = ((Message.IndexPayload)msg.getPayload()).index;
+            }
+            // Everything needed is copied out, the buffer can go back to the pool
+            msg.release();
 
-            // Which piece did they request
-            Integer idx = ((Message.IndexPayload)event.getSource().msg.getPayload()).index;
-            logger.debug("Received request message for {} from {} (self = {})", idx, 
-                event.getSource().id, PeerProcess.this.myid);
+            serveRequest(id, idx, offset, length);
+        }
+    }
 
-            if(neighborStatus.get(event.getSource().id) == PeerStatus.Choked) {
+    /**
+     * Answer a request from peer for length bytes at offset of piece idx, or for the whole piece if length is
+     * negative
+     */
+    private void serveRequest(int peer, int idx, int offset, int length) {
+        logger.debug("Received request message for {} from {} (self = {})", idx, 
+            peer, PeerProcess.this.myid);
 
-                // they are choked, ignore the request
-                logger.debug("ignoring request from {}, they are choked (self = {})", 
-                    event.getSource().id, PeerProcess.this.myid);
+        if(neighborStatus.get(peer) == PeerStatus.Choked) {
 
-            } else if(idx < 0 || idx > fH.maxPiece()) {
+            // they are choked, ignore the request
+            logger.debug("ignoring request from {}, they are choked (self = {})", 
+                peer, PeerProcess.this.myid);
 
-                // invalid piece
-                logger.debug("ignoring request from {}, invalid piece {} requested (self = {})", 
-                    event.getSource().id, idx, PeerProcess.this.myid);
+        } else if(idx < 0 || idx >= fH.maxPiece()) {
 
+            // invalid piece
+            logger.debug("ignoring request from {}, invalid piece {} requested (self = {})", 
+                peer, idx, PeerProcess.this.myid);
+
+        } else if(connector.isFull(peer) || waitingRequests.containsKey(peer) || upload.delay(peer) > 0) {
+
+            // their queue is full or we are over the upload limit, answer once it drains or we are under
+            ArrayDeque<FileHandle.Block> waiting = waitingRequests.get(peer);
+            if(waiting == null) {
+                waiting = new ArrayDeque<FileHandle.Block>();
+                waitingRequests.put(peer, waiting);
+            }
+            if(waiting.size() < MAX_WAITING_REQUESTS) {
+                waiting.add(new FileHandle.Block(idx, offset, length, length < 0));
             } else {
-                // Get piece
-                byte[] piece = fH.getPieceToSend(idx);
+                logger.debug("ignoring request from {}, too many waiting (self = {})", peer, PeerProcess.this.myid);
+            }
+            long delay = upload.delay(peer);
+            if(delay > 0) {
+                retryAnswers(peer, delay);
+            }
 
-                if(piece.length <= 0) {
+        } else {
+            answerRequest(peer, idx, offset, length);
+        }
+    }
 
-                    logger.error("file handle returned empty piece, ignoring request (self = {})",
-                        PeerProcess.this.myid);
+    // Send peer what it requested
+    private void answerRequest(int peer, int idx, int offset, int length) {
+        upload.take(peer, (length < 0) ? fH.pieceLength(idx) : length);
+        if(disk != null) {
+            // Sent by DiskReader once it is read
+            disk.read(peer, idx, offset, length);
+            return;
+        }
+        Message reply = pieceToSend(idx, offset, length);
 
-                } else {
+        if(reply != null) {
+
+            // Send it
+            message(peer, reply);
+            logger.debug("Send piece {} ({} bytes at {}) to {} (self = {})", idx, reply.contentLength(),
+                offset, peer, PeerProcess.this.myid);
+        }
+    }
+
+    /**
+     * Answers requests for the disk threads
+     */
+    private class DiskReader implements DiskIO.Reader {
+        public Message read(int piece, int offset, int length) {
+            return pieceToSend(piece, offset, length);
+        }
+
+        public void send(int peer, Message reply) {
+            if(neighborStatus.get(peer) == PeerStatus.Choked) {
+                logger.debug("not sending a piece to {}, choked while it was read (self = {})", peer, myid);
+                return;
+            }
+            message(peer, reply);
+            logger.debug("Send {} bytes of a piece to {} (self = {})", reply.contentLength(), peer, myid);
+        }
+    }
+
+    /**
+     * Deal with the send queue of a peer draining, answer the requests that waited for it
+     */
+    private class DrainedHandler implements PeerDispatcher.DrainHandler {
+        public void onDrain(int id) {
+            ArrayDeque<FileHandle.Block> waiting = waitingRequests.get(id);
+            if(waiting == null) {
+                return;
+            }
 
-                    // Send it
-                    message(event.getSource().id, Message.piece(idx, piece));
-                    logger.debug("Send piece {} to {} (self = {})", idx, 
-                        event.getSource().id, PeerProcess.this.myid);
+            logger.debug("queue of {} drained, answering {} waiting requests (self = {})", id, waiting.size(),
+                PeerProcess.this.myid);
+
+            while(!waiting.isEmpty() && !connector.isFull(id)) {
+                long delay = upload.delay(id);
+                if(delay > 0) {
+                    retryAnswers(id, delay);
+                    break;
                 }
+                FileHandle.Block request = waiting.poll();
+                answerRequest(id, request.piece, request.offset, request.length);
+            }
+            if(waiting.isEmpty()) {
+                waitingRequests.remove(id);
             }
         }
     }
 
+    /**
+     * Answer the waiting requests of peer in delay ms, unless that is already going to happen
+     */
+    private void retryAnswers(final int peer, long delay) {
+        if(!uploadWaiting.add(peer)) {
+            return;
+        }
+        throttleTimer.schedule(new TimerTask() {
+            public void run() {
+                uploadWaiting.remove(peer);
+                dispatcher.drained(peer);
+            }
+        }, delay);
+    }
+
+    /**
+     * Deal with a peer taking back one of its requests
+     */
+    private class CancelHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
+            Message.BlockRequestPayload cancel = (Message.BlockRequestPayload)msg.getPayload();
+            // The payload object holds copies, the buffer can go back to the pool
+            msg.release();
+
+            // Forget it if it is still waiting to be answered, or take it off the send queue
+            boolean found = false;
+            ArrayDeque<FileHandle.Block> waiting = waitingRequests.get(id);
+            if(waiting != null) {
+                Iterator<FileHandle.Block> it = waiting.iterator();
+                while(it.hasNext()) {
+                    FileHandle.Block request = it.next();
+                    if(request.piece == cancel.index && request.offset == cancel.offset) {
+                        it.remove();
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if(!found && disk != null) {
+                found = disk.cancel(id, cancel.index, cancel.offset);
+            }
+            if(!found) {
+                found = connector.cancel(id, cancel.index, cancel.offset);
+            }
+
+            logger.debug("{} cancelled its request for {}@{} ({}, self = {})", id, cancel.index, cancel.offset,
+                found ? "not sent" : "already sent", PeerProcess.this.myid);
+        }
+    }
+
+    /**
+     * A block came in from peer, take back the requests other peers have for it (endgame)
+     */
+    private void cancelOtherRequests(int peer, Message.PiecePayload payload) {
+        for(final AbstractMap.SimpleImmutableEntry<Integer, FileHandle.Block> request :
+                fH.cancelOtherRequests(peer, payload.index, payload.offset, payload.length)) {
+            final int other = request.getKey();
+            final FileHandle.Block block = request.getValue();
+            dispatcher.execute(other, new Runnable() {
+                public void run() {
+                    pipeline(other).cancel(block.piece, block.offset);
+                }
+            });
+            if(neighbors.get(other).supports(NeighborPeer.EXT_CANCEL)) {
+                message(other, Message.cancel(block.piece, block.offset, block.length));
+            }
+            logger.debug("cancelled request for block {} from {}, it came from {} (self = {})", block, other, peer,
+                this.myid);
+        }
+    }
+
+    /**
+     * Forget the requests of peer that wait for its queue to drain, after choking it
+     */
+    private void dropWaitingRequests(final int peer) {
+        dispatcher.execute(peer, new Runnable() {
+            public void run() {
+                waitingRequests.remove(peer);
+                if(disk != null) {
+                    disk.drop(peer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether the send queue of peer has stayed full for so long that it should not be unchoked
+     */
+    private boolean isSlow(int peer, long now) {
+        return this.SlowPeerTimeout > 0 && connector.fullFor(peer, now) >= this.SlowPeerTimeout;
+    }
+
+    /**
+     * Message answering a request for length bytes at offset of piece idx, or for the whole piece if length is
+     * negative. Null if the file handle could not provide it.
+     */
+    private Message pieceToSend(int idx, int offset, int length) {
+        if(ZeroCopySend) {
+            // Contents are transferred from the file to the socket when it is sent
+            return (length < 0) ? fH.getPieceRegionToSend(idx) : fH.getBlockRegionToSend(idx, offset, length);
+        }
+
+        byte[] contents = (length < 0) ? fH.getPieceToSend(idx) : fH.getBlockToSend(idx, offset, length);
+
+        if(contents == null || contents.length <= 0) {
+
+            logger.error("file handle returned empty piece, ignoring request (self = {})",
+                PeerProcess.this.myid);
+            return null;
+        }
+
+        return (length < 0) ? Message.piece(idx, contents) : Message.block(idx, offset, contents);
+    }
+
     /**
      * Deal with a piece that has been sent by a peer
      */
-    private class PieceHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
+    private class PieceHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
 
-            // Get the piece out of the message
-            Message.PiecePayload payload = ((Message.PiecePayload)event.getSource().msg.getPayload());
-            byte[] content = new byte[payload.length];
-            payload.content.get(content);
+            // A whole piece or a block of one
+            Message.PiecePayload payload = ((Message.PiecePayload)msg.getPayload());
 
-            // Write it to our file
-            Boolean success = fH.writePiece(payload.index, content, event.getSource().id);
+            pipeline(id).received(payload.index, payload.offset, payload.length,
+                System.currentTimeMillis());
+            cancelOtherRequests(id, payload);
+
+            // Announced by PieceStoredHandler once the piece is durable
+            if(disk != null) {
+                disk.write(id, (long) payload.index * PieceSize + payload.offset, new StoreTask(id, msg, true));
+            } else {
+                new StoreTask(id, msg, false).run();
+            }
 
             logger.debug("Current bitfield is {} (self={})", fH.printableBitfield(), myid);
 
-            if(success) {
-                // Send out have message to all peers
-                // Also, send not interested to peers we are no longer interested in after getting this piece
-                logger.debug("Sending have piece {} message to all peers (self={})", payload.index, myid);
+            // Increment the volume score
+            neighborVolume.get(id).addAndGet(payload.length);
+
+            requestMore(id);
+        }
+    }
+
+    /**
+     * Ask peer for more, unless it is choking us
+     */
+    private void requestMore(int id) {
+        // Find are they choked or not
+        PeerStatus neighborStat = selfStatus.get(id);
+
+        if (neighborStat == null) {
+            neighborStat = PeerStatus.Choked;
+        } 
 
-                Integer[] peerids = neighbors.keySet().toArray(new Integer[neighbors.size()]);
+        if(neighborStat == PeerStatus.Unchoked) {
+            requestPiece(id);   
+        }
+    }
 
-                for (int i = 0; i < peerids.length; i++) { 
-                    message(peerids[i], Message.index(Message.Type.Have, payload.index));
+    /**
+     * Put a piece or block that came in from a peer in our file
+     */
+    private class StoreTask implements Runnable {
+        private final int id;
+        private final Message msg;
+        private final boolean requestAfter; // whether to ask for more once stored
+
+        StoreTask(int id, Message msg, boolean requestAfter) {
+            this.id = id;
+            this.msg = msg;
+            this.requestAfter = requestAfter;
+        }
 
-                    // Check if interested in this neighbor any more
-                    if (fH.peerHasPiece(peerids[i], payload.index) &&
-                        !fH.checkInterest(peerids[i])) {
+        public void run() {
+            Message.PiecePayload payload = ((Message.PiecePayload)this.msg.getPayload());
+            if(this.msg.isFileBacked()) {
+                // Contents were written to our file as they arrived
+                fH.commitBlock(payload.index, payload.offset, payload.length, this.id, this.msg);
+            } else {
+                // Write it to our file
+                fH.writeBlock(payload.index, payload.offset, payload.content, this.id);
+                this.msg.release();
+            }
 
-                       message(peerids[i], Message.empty(Message.Type.NotInterested));
+            if(this.requestAfter) {
+                // Until it was stored, the block counted as requested
+                dispatcher.execute(this.id, new Runnable() {
+                    public void run() {
+                        requestMore(StoreTask.this.id);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A received piece is durable and in our bitfield, announce it
+     */
+    private class PieceStoredHandler implements Runnable {
+        private final int index;
 
-                       logger.debug("No longer interested in bitfield {} from {} (self = {}).",
-                          fH.printableBitSet(fH.getBitfield(peerids[i])), peerids[i], myid);
-                    }  
+        PieceStoredHandler(int index) {
+            this.index = index;
+        }
 
+        public void run() {
+            if(HaveBatchInterval > 0) {
+                // Announced with the others on the next have interval, or now if it was the last
+                // piece, since we may be about to shut down
+                synchronized (pendingHaves) {
+                    pendingHaves.add(this.index);
+                }
+                if (!fH.checkAvailability()) {
+                    announcePendingPieces();
                 }
+            } else {
+                announcePieces(Collections.singletonList(this.index));
+            }
 
-                if (!fH.checkAvailability()){
-                    // Set hasFile flag so that Preferred nbrs are chosen randomly in next Unchoke interval
-                    PeerProcess.this.hasFile = true;
-                    logger.info("Peer {} has downloaded the complete file.", PeerProcess.this.myid);
+            if (!fH.checkAvailability() && !PeerProcess.this.hasFile){
+                // Set hasFile flag so that Preferred nbrs are chosen randomly in next Unchoke interval
+                PeerProcess.this.hasFile = true;
+                logger.info("Peer {} has downloaded the complete file.", PeerProcess.this.myid);
+                logger.info("Peer {} took {} ms to download the file ({} threads, {} event loops).",
+                    myid, System.currentTimeMillis() - startTime, VirtualThreads ? "virtual" : "platform",
+                    EventLoopThreads);
+
+                // Neighbors that missed some of our haves still need to know we are done
+                for (Integer peer : suppressedHaves) {
+                    message(peer, Message.bitfield(fH.getBitfield(), fH.maxPiece(),
+                        neighbors.get(peer).supports(NeighborPeer.EXT_COMPACT_BITFIELD)));
+                }
+                suppressedHaves.clear();
 
-                    if(fH.allComplete()) {
-                        PeerProcess.dispatcher.publish(topic("complete"), true);
-                    }
+                if(fH.allComplete()) {
+                    dispatcher.execute(new CompleteHandler());
                 }
             }
-            
-            // Increment the volume score
-            neighborVolume.put(event.getSource().id, neighborVolume.get(event.getSource().id) + 1); 
+        }
+    }
+
+    /**
+     * Send out have messages for newly completed pieces to all peers, except for pieces a peer already has. A peer
+     * that takes them gets a single multi-have for several pieces. Also, send not interested to peers we are no
+     * longer interested in after getting these pieces.
+     */
+    private void announcePieces(List<Integer> pieces) {
+        logger.debug("Sending have pieces {} message to all peers (self={})", pieces, myid);
 
-            // Find are they choked or not
-            PeerStatus neighborStat = selfStatus.get(event.getSource().id);
+        // Once we have every piece, the bitfield making up for suppressed haves may have gone out already (pieces
+        // made durable together are announced one after the other), so nothing is suppressed any more
+        boolean done = !fH.checkAvailability();
 
-            if (neighborStat == null) {
-                neighborStat = PeerStatus.Choked;
-            } 
+        for (Integer peer : neighbors.keySet()) {
 
-            if(neighborStat == PeerStatus.Unchoked) {
-                requestPiece(event.getSource().id);   
+            // They do not need to hear about pieces they have themselves
+            ArrayList<Integer> news = new ArrayList<Integer>();
+            for (Integer idx : pieces) {
+                if (done || !fH.peerHasPiece(peer, idx)) {
+                    news.add(idx);
+                } else {
+                    suppressedHaves.add(peer);
+                }
+            }
+
+            if (news.size() > 1 && neighbors.get(peer).supports(NeighborPeer.EXT_MULTI_HAVE)) {
+                message(peer, Message.multiHave(news));
+            } else {
+                for (Integer idx : news) {
+                    message(peer, Message.index(Message.Type.Have, idx));
+                }
             }
 
+            // Check if interested in this neighbor any more, if it had any of them
+            if (news.size() < pieces.size() && !fH.checkInterest(peer)) {
+
+               message(peer, Message.empty(Message.Type.NotInterested));
+
+               logger.debug("No longer interested in bitfield {} from {} (self = {}).",
+                  fH.printableBitSet(fH.getBitfield(peer)), peer, myid);
+            }
         }
     }
 
+    // Announce the pieces completed since the last interval (if batching)
+    private void announcePendingPieces() {
+        ArrayList<Integer> pieces;
+        synchronized (pendingHaves) {
+            if (pendingHaves.isEmpty()) {
+                return;
+            }
+
+            pieces = new ArrayList<Integer>(pendingHaves);
+            pendingHaves.clear();
+        }
+        announcePieces(pieces);
+    }
+
     /**
-     * A peer has received a new piece
+     * Time to announce the pieces completed since the last interval (if batching)
      */
-    private class HaveHandler implements Subscriber<PeerConnection.PeerMessage> {
-        public void onEvent(Event<PeerConnection.PeerMessage> event) {
+    private class HaveIntervalHandler implements Runnable {
+        public void run() {
+            announcePendingPieces();
+        }
+    }
 
-            // Get which piece out of the message
-            Integer idx = ((Message.IndexPayload)event.getSource().msg.getPayload()).index;
-            logger.info("Peer {} received the 'have' message from {} for the piece {}.",
-            		myid, event.getSource().id, idx);
+    /**
+     * A peer has received a new piece, or several (multi-have)
+     */
+    private class HaveHandler implements PeerDispatcher.MessageHandler {
+        public void onMessage(int id, Message msg) {
+
+            // Get which pieces out of the message
+            ArrayList<Integer> pieces = new ArrayList<Integer>();
+            if (msg.type == Message.Type.MultiHave) {
+                Message.MultiIndexPayload payload = (Message.MultiIndexPayload)msg.getPayload();
+                for (int i = 0; i < payload.count; i++) {
+                    pieces.add(payload.index(i));
+                }
+                msg.release();
+            } else {
+                pieces.add(((Message.IndexPayload)msg.getPayload()).index);
+            }
+
+            boolean interested = false;
+            for (Integer idx : pieces) {
+                logger.info("Peer {} received the 'have' message from {} for the piece {}.",
+                		myid, id, idx);
+
+                fH.updateHasPiece(id, idx);
+                interested |= fH.interestedInPiece(idx);
+            }
 
-            fH.updateHasPiece(event.getSource().id, idx);
             if(fH.allComplete()) {
-                PeerProcess.dispatcher.publish(topic("complete"), true);
+                dispatcher.execute(new CompleteHandler());
             }
 
             // See if we are now interested in this neighbor
-            if (fH.interestedInPiece(idx)) {
-                message(event.getSource().id, Message.empty(Message.Type.Interested));
+            if (interested) {
+                message(id, Message.empty(Message.Type.Interested));
                 logger.debug("Interested in the pieces of neighbor {} (self={})",
-                    event.getSource().id, myid);
+                    id, myid);
             }
             
         }
@@ -603,12 +1515,14 @@ public class PeerProcess {
     /**
      * Deal with time to update preferred neighbors
      */
-    private class UnchokeIntervalHandler implements Subscriber<Boolean> {
-        public void onEvent(Event<Boolean> ignored) {
+    private class UnchokeIntervalHandler implements Runnable {
+        public void run() {
 
             logger.debug("Unchoking interval. Missing {} pieces. Finding preferred neighbors (self = {})",
                 fH.getNumMissing(), PeerProcess.this.myid);
 
+            reloadLimits();
+
             if(fH.allComplete()) {
                 logger.debug("all complete; some state transition was missed (self = {})", myid);
             }
@@ -617,6 +1531,29 @@ public class PeerProcess {
             // All our peer ids
             ArrayList<Integer> peers = new ArrayList<Integer>(neighbors.keySet());
 
+            // Volume scores of the interval, resetting them for the next one
+            final HashMap<Integer, Integer> volume = new HashMap<Integer, Integer>();
+            for (Map.Entry<Integer, AtomicInteger> entry : neighborVolume.entrySet()) {
+                volume.put(entry.getKey(), entry.getValue().getAndSet(0));
+            }
+
+            // Neighbors that cannot keep up with what we send them are choked, or dropped if it goes on too long
+            long now = System.currentTimeMillis();
+            HashMap<Integer, Long> queued = new HashMap<Integer, Long>();
+            ArrayList<Integer> slow = new ArrayList<Integer>();
+            for (Integer peer : peers) {
+                queued.put(peer, connector.queuedBytes(peer));
+                if (SlowPeerDropTimeout > 0 && connector.fullFor(peer, now) >= SlowPeerDropTimeout) {
+                    logger.warn("Peer {} dropped {}, its send queue stayed full too long.", myid, peer);
+                    connector.drop(peer);
+                }
+                if (isSlow(peer, now)) {
+                    slow.add(peer);
+                }
+            }
+            logger.debug("send queues (bytes) {} (self = {})", queued, myid);
+            peers.removeAll(slow);
+
             // sort in descending order, neighbors who have sent us the most
             // file pieces at the top
             Collections.sort(peers, new Comparator<Integer>() {
@@ -626,8 +1563,8 @@ public class PeerProcess {
             				return (new Random().nextBoolean()) ? -1 : +1;
                     	}
                     	else{
-	                        Integer vola = neighborVolume.get(a);
-	                        Integer volb = neighborVolume.get(b);
+	                        Integer vola = volume.get(a);
+	                        Integer volb = volume.get(b);
 	
 	                        if (vola == null) {
 	                            vola = 0;
@@ -642,11 +1579,6 @@ public class PeerProcess {
                     }
                 });
             
-            //Reset volume score
-            for (Integer key : neighborVolume.keySet()){
-            	neighborVolume.put(key, 0);
-            }
-            
             // Send choke and unchoke messages
             int i = 0;
             ArrayList<Integer> listPrefNbr = new ArrayList<Integer>();
@@ -672,21 +1604,30 @@ public class PeerProcess {
             logger.info("Peer {} has the preferred neighbors {}.", 
             		myid, Arrays.toString(listPrefNbr.toArray()));
 
+            // Slow neighbors go last, and are choked even if optimistically unchoked
+            peers.addAll(slow);
+
             // Send choke message (unless this is the optimistically unchoked neighbor)
             for(; i < peers.size(); i++) {
 
                 // previous status
                 PeerStatus old = neighborStatus.get(peers.get(i));
 
+                boolean isSlow = slow.contains(peers.get(i));
+
                 // update choked status unless this is the optimistic neighbor
-                if(!old.equals(PeerStatus.Optimistic)) {
+                if(!old.equals(PeerStatus.Optimistic) || isSlow) {
 
                     neighborStatus.put(peers.get(i), PeerStatus.Choked);
                 }
 
                 // send choked message if it wasn't choked already 
-                if(old.equals(PeerStatus.Unchoked)) {
+                if(old.equals(PeerStatus.Unchoked) || (isSlow && old.equals(PeerStatus.Optimistic))) {
                     message(peers.get(i), Message.empty(Message.Type.Choke));
+                    dropWaitingRequests(peers.get(i));
+                    if(isSlow) {
+                        logger.info("Peer {} choked {}, its send queue stayed full.", myid, peers.get(i));
+                    }
                     logger.debug("Removed {} from preferred neighbors (self = {})", peers.get(i), PeerProcess.this.myid);
                 }
             }
@@ -698,8 +1639,8 @@ public class PeerProcess {
      * Deal with time to update optimistically unchoked neighbor
      * TODO: Need to only choose neighbor that is interested in our pieces
      */
-    private class OptimisticIntervalHandler implements Subscriber<Boolean> {
-        public void onEvent(Event<Boolean> ignored) {
+    private class OptimisticIntervalHandler implements Runnable {
+        public void run() {
 
             logger.debug("Optimistic interval. Finding optimistic neighbor (self={})", myid);
 
@@ -719,12 +1660,14 @@ public class PeerProcess {
                 if (neighborStatus.get(n_id) == PeerStatus.Optimistic) {
                     neighborStatus.put(n_id, PeerStatus.Choked);
 	            message(n_id, Message.empty(Message.Type.Choke));
+	            dropWaitingRequests(n_id);
 	            logger.debug("Choked previous optimistic neighbor {} (self={})",
                         n_id, myid);
                 }
 
                 if ((neighborStatus.get(n_id) == PeerStatus.Choked)&&
-                    (neighborInterestedStatus.get(n_id) == PeerInterestedStatus.Interested)) {
+                    (neighborInterestedStatus.get(n_id) == PeerInterestedStatus.Interested)&&
+                    !isSlow(n_id, System.currentTimeMillis())) {
                     // This neighbor is choked and interested
                     potential.add(n_id);
                 }
@@ -751,45 +1694,76 @@ public class PeerProcess {
     /**
      * A peer has received a new piece
      */
-    private class CompleteHandler implements Subscriber<Boolean> {
-        public void onEvent(Event<Boolean> event) throws Exception {
+    private class CompleteHandler implements Runnable {
+        public void run() {
+            if (completing) {
+                return;
+            }
+            completing = true;
+
             logger.debug("all done, shutting down (self = {})", myid);
             chokeTimer.cancel();
             optimisticTimer.cancel();
+            if (haveTimer != null) {
+                haveTimer.cancel();
+            }
+            throttleTimer.cancel();
+            requestTimeouts.stop();
             // logger.debug("just kidding, sitting here for all eternity (self = {})", myid);
+
+            // Done after the connections have sent what was queued for them and closed
             for(Integer peer : neighbors.keySet()) {
-                PeerProcess.dispatcher.publish(topic(String.format("peer/%d/close", peer)), true);
+                connector.close(peer);
+            }
+            if (disk != null) {
+                disk.close();
             }
-            fH.close();
-            System.exit(0);
+            try {
+                fH.close();
+            } catch (IOException e) {
+                logger.error("failed to close file (self = {})", myid, e);
+            }
+            done.countDown();
+            dispatcher.shutdown();
         }
     }
 
     // send a message to peer id
-    private static void message(int id, Message msg) {
-        PeerProcess.dispatcher.publish(topic(PeerConnection.sendTopic(id)), msg);
+    private void message(int id, Message msg) {
+        connector.send(id, msg);
     }
 
     private void registerTimers() {
         this.chokeTimer = new Timer("choke/unchoke");
-        this.chokeTimer.scheduleAtFixedRate(new MessageTask<Boolean>(topic("interval/unchoke"), true),
+        this.chokeTimer.scheduleAtFixedRate(new DispatchTask(new UnchokeIntervalHandler()),
             0, this.UnchokingInterval * 1000);
 
         this.optimisticTimer = new Timer("optimistic");
-        this.optimisticTimer.scheduleAtFixedRate(new MessageTask<Boolean>(topic("interval/optimistic"), true),
+        this.optimisticTimer.scheduleAtFixedRate(new DispatchTask(new OptimisticIntervalHandler()),
             0, this.OptimisticUnchokingInterval * 1000);
+
+        this.throttleTimer = new Timer("throttle", true);
+
+        this.requestTimeouts = new TimingWheel<SentRequest>("request-timeouts", 512, 10,
+            new RequestTimeoutHandler());
+        this.requestTimeouts.start();
+
+        if (this.HaveBatchInterval > 0) {
+            this.haveTimer = new Timer("have");
+            this.haveTimer.scheduleAtFixedRate(new DispatchTask(new HaveIntervalHandler()),
+                this.HaveBatchInterval, this.HaveBatchInterval);
+        }
     }
 
-    private static class MessageTask<T> extends TimerTask {
-        private Topic topic;
-        private T value;
-        public MessageTask(Topic t, T value) {
-            this.topic = t;
-            this.value = value;
+    // Has the dispatcher run a task when the timer goes off
+    private class DispatchTask extends TimerTask {
+        private Runnable task;
+        public DispatchTask(Runnable task) {
+            this.task = task;
         }
 
         public void run() {
-            PeerProcess.dispatcher.publish(topic, value);
+            dispatcher.execute(task);
         }
     }
 }
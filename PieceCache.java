@@ -0,0 +1,276 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the contents of pieces that are sent often in memory, up to a budget of bytes, so serving a popular piece
+ * to many peers does not read it from disk each time. Only complete pieces are cached, whose contents never change,
+ * so the same buffer is handed to any number of sends at once, each as a read-only duplicate.
+ *
+ * Eviction follows W-TinyLFU. New pieces go into a small LRU window. A piece pushed out of the window only makes it
+ * into the main part of the cache if it was asked for more often than the piece it would push out there, going by a
+ * count-min sketch of how often each piece was asked for recently. So a burst of pieces asked for once (a peer
+ * reading through the whole file) passes through the window without flushing the pieces that are asked for all the
+ * time. The main part is a segmented LRU: pieces asked for again while on probation are protected.
+ *
+ * Buffers are allocated off the heap if asked to, so a large cache does not add to the work of the collector. They
+ * are freed once no send holds them any more.
+ */
+class PieceCache {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    // Shares of the budget for the window, and of the main part for protected pieces, in percent
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final long budget; // bytes
+    private final boolean offHeap;
+    private final long windowMax;
+    private final long protectedMax;
+
+    // Each in order of last use, least recent first
+    private final LinkedHashMap<Integer, ByteBuffer> window = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, ByteBuffer> probation =
+            new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, ByteBuffer> protectedPieces =
+            new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+    private long windowBytes = 0;
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private final FrequencySketch sketch;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param budget
+     *            Most bytes of pieces to keep
+     * @param offHeap
+     *            Whether to keep them in direct buffers rather than on the heap
+     * @param pieceSize
+     *            Size of most pieces, to size the sketch for the number of pieces that fit
+     */
+    public PieceCache(long budget, boolean offHeap, int pieceSize) {
+        this.budget = budget;
+        this.offHeap = offHeap;
+        this.windowMax = Math.max(pieceSize, budget * WINDOW_PERCENT / 100);
+        this.protectedMax = (budget - this.windowMax) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(16, budget / pieceSize)));
+    }
+
+    /**
+     * Contents of piece as a read-only buffer, or null if it is not cached. Counts as asking for the piece either
+     * way.
+     */
+    public synchronized ByteBuffer get(int piece) {
+        this.sketch.increment(piece);
+
+        ByteBuffer contents = this.window.get(piece);
+        if(contents == null) {
+            contents = this.protectedPieces.get(piece);
+        }
+        if(contents == null) {
+            contents = this.probation.remove(piece);
+            if(contents != null) {
+                // Asked for again, protect it
+                this.probationBytes -= contents.capacity();
+                this.protectedPieces.put(piece, contents);
+                this.protectedBytes += contents.capacity();
+                this.demoteProtected();
+            }
+        }
+
+        if(contents == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return contents.asReadOnlyBuffer();
+    }
+
+    /**
+     * Whether piece, of length bytes and just missed, is worth reading into a buffer of the cache. It is not if the
+     * cache is full and the piece is asked for no more often than the one it would push out of the main part, so a
+     * scan of pieces asked for once does not churn through cache buffers (off the heap, maybe) that put would only
+     * turn away. Such pieces are sent from storage instead.
+     */
+    public synchronized boolean admits(int piece, int length) {
+        if(length > this.budget) {
+            return false;
+        }
+        if(this.size() + length <= this.budget) {
+            return true;
+        }
+        LinkedHashMap<Integer, ByteBuffer> from = this.probation.isEmpty() ? this.protectedPieces : this.probation;
+        if(from.isEmpty() || this.sketch.frequency(piece) > this.sketch.frequency(from.keySet().iterator().next())) {
+            return true;
+        }
+        this.evictions++;
+        return false;
+    }
+
+    /**
+     * An empty buffer to read length bytes of a piece into, before handing it to put
+     */
+    public ByteBuffer allocate(int length) {
+        return this.offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    }
+
+    /**
+     * Cache the contents of piece, between position and limit of contents. It must not be changed afterwards.
+     * Whether it stays depends on how often it is asked for, see get.
+     *
+     * @return contents as a read-only buffer
+     */
+    public synchronized ByteBuffer put(int piece, ByteBuffer contents) {
+        ByteBuffer kept = contents.slice();
+        if(kept.capacity() > this.budget || this.window.containsKey(piece) || this.probation.containsKey(piece)
+                || this.protectedPieces.containsKey(piece)) {
+            return kept.asReadOnlyBuffer();
+        }
+
+        this.window.put(piece, kept);
+        this.windowBytes += kept.capacity();
+
+        // Pieces pushed out of the window try to get into the main part
+        while(this.windowBytes > this.windowMax && !this.window.isEmpty()) {
+            Map.Entry<Integer, ByteBuffer> eldest = this.window.entrySet().iterator().next();
+            this.window.remove(eldest.getKey());
+            this.windowBytes -= eldest.getValue().capacity();
+            this.admit(eldest.getKey(), eldest.getValue());
+        }
+        return kept.asReadOnlyBuffer();
+    }
+
+    // Put candidate on probation if there is room, or if it is asked for more often than the pieces that have to go
+    // to make room
+    private void admit(int candidate, ByteBuffer contents) {
+        long mainMax = this.budget - this.windowMax;
+        int frequency = this.sketch.frequency(candidate);
+        while(this.probationBytes + this.protectedBytes + contents.capacity() > mainMax) {
+            LinkedHashMap<Integer, ByteBuffer> from = this.probation.isEmpty() ? this.protectedPieces : this.probation;
+            if(from.isEmpty()) {
+                break;
+            }
+            Map.Entry<Integer, ByteBuffer> victim = from.entrySet().iterator().next();
+            if(this.sketch.frequency(victim.getKey()) >= frequency) {
+                this.evictions++;
+                logger.trace("not caching piece {}, asked for less often than piece {}", candidate,
+                        victim.getKey());
+                return;
+            }
+            from.remove(victim.getKey());
+            if(from == this.probation) {
+                this.probationBytes -= victim.getValue().capacity();
+            } else {
+                this.protectedBytes -= victim.getValue().capacity();
+            }
+            this.evictions++;
+        }
+        if(this.probationBytes + this.protectedBytes + contents.capacity() > mainMax) {
+            this.evictions++;
+            return;
+        }
+        this.probation.put(candidate, contents);
+        this.probationBytes += contents.capacity();
+    }
+
+    // Move the least recently used protected pieces back on probation until protected pieces fit their share
+    private void demoteProtected() {
+        Iterator<Map.Entry<Integer, ByteBuffer>> it = this.protectedPieces.entrySet().iterator();
+        while(this.protectedBytes > this.protectedMax && it.hasNext()) {
+            Map.Entry<Integer, ByteBuffer> eldest = it.next();
+            it.remove();
+            this.protectedBytes -= eldest.getValue().capacity();
+            this.probation.put(eldest.getKey(), eldest.getValue());
+            this.probationBytes += eldest.getValue().capacity();
+        }
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    public synchronized long evictions() {
+        return this.evictions;
+    }
+
+    /**
+     * Bytes of pieces cached right now
+     */
+    public synchronized long size() {
+        return this.windowBytes + this.probationBytes + this.protectedBytes;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d evictions, %d of %d bytes used%s", this.hits, this.misses,
+                this.evictions, this.size(), this.budget, this.offHeap ? " off heap" : "");
+    }
+
+    /**
+     * Count-min sketch of how often each piece was asked for, with 4-bit counters. All counters are halved once
+     * there were 10 times as many increments as counters per row, so it reflects what is popular lately.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int increments = 0;
+
+        FrequencySketch(int expected) {
+            int width = Integer.highestOneBit(Math.max(16, expected - 1) << 1);
+            this.counters = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(int key) {
+            boolean added = false;
+            for(int i = 0; i < DEPTH; i++) {
+                int at = this.index(key, i);
+                if(this.counters[i][at] < MAX_COUNT) {
+                    this.counters[i][at]++;
+                    added = true;
+                }
+            }
+            if(added && ++this.increments >= this.sampleSize) {
+                this.halve();
+            }
+        }
+
+        int frequency(int key) {
+            int min = MAX_COUNT;
+            for(int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, this.counters[i][this.index(key, i)]);
+            }
+            return min;
+        }
+
+        private void halve() {
+            for(byte[] row : this.counters) {
+                for(int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            this.increments /= 2;
+        }
+
+        private int index(int key, int row) {
+            int h = key * SEEDS[row];
+            h ^= h >>> 16;
+            return h & this.mask;
+        }
+    }
+}
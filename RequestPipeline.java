@@ -0,0 +1,158 @@
+import java.util.HashMap;
+
+/**
+ * Keeps track of the requests outstanding with one peer and how many there
+ * should be. Enough requests are kept in flight to cover the connection's
+ * bandwidth-delay product: the measured download rate from the peer times
+ * the round trip time, in blocks, plus one to absorb jitter.
+ *
+ * The round trip time is the lowest request-to-block time seen recently, since
+ * later requests in a full pipeline also wait behind the ones before them.
+ *
+ * A request that takes much longer than requests usually do is given up on.
+ * The timeout follows the smoothed request-to-block time and its variation,
+ * the way TCP times out segments, and doubles with every timeout in a row.
+ */
+class RequestPipeline {
+
+    // Depth used until there are measurements, and the lowest allowed
+    static final int MIN_DEPTH = 2;
+
+    // How long a round trip time sample stays the minimum before it is replaced
+    private static final long RTT_WINDOW_MS = 10000;
+
+    // Weight of a new sample in the rate average
+    private static final double RATE_GAIN = 0.25;
+
+    // Timeout used until there are measurements, and the bounds of the timeout (ms)
+    private static final long INITIAL_TIMEOUT = 5000;
+    private static final long MIN_TIMEOUT = 500;
+    private static final long MAX_TIMEOUT = 60000;
+
+    private final int maxDepth;
+
+    // When each outstanding request was sent, by block
+    private final HashMap<Long, Long> sentAt = new HashMap<Long, Long>();
+
+    private long minRtt = -1; // ms
+    private long minRttTime; // when minRtt was measured
+    private double rate; // bytes per ms
+    private long lastArrival = -1;
+    private double srtt = -1; // smoothed request-to-block time (ms)
+    private double rttvar; // and its mean deviation
+    private int backoff = 1; // timeout multiplier, doubled on each timeout
+
+    public RequestPipeline(int maxDepth) {
+        this.maxDepth = Math.max(maxDepth, MIN_DEPTH);
+    }
+
+    private static long key(int piece, int offset) {
+        return ((long) piece << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * A request for the block at offset of piece was sent
+     */
+    public void requested(int piece, int offset, long now) {
+        this.sentAt.put(key(piece, offset), now);
+    }
+
+    /**
+     * length bytes at offset of piece arrived
+     */
+    public void received(int piece, int offset, int length, long now) {
+        Long sent = this.sentAt.remove(key(piece, offset));
+        if(sent == null) {
+            // not something we are timing (cancelled, or not asked for)
+            return;
+        }
+
+        long rtt = Math.max(now - sent, 1);
+        if(this.srtt < 0) {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2.0;
+        } else {
+            this.rttvar += 0.25 * (Math.abs(this.srtt - rtt) - this.rttvar);
+            this.srtt += 0.125 * (rtt - this.srtt);
+        }
+        this.backoff = 1;
+
+        if(this.minRtt < 0 || rtt <= this.minRtt || now - this.minRttTime > RTT_WINDOW_MS) {
+            this.minRtt = rtt;
+            this.minRttTime = now;
+        }
+
+        // If the pipe was busy since the last arrival, the gap is the time this block took to
+        // come in. Otherwise the request went out to an idle peer and the round trip counts too.
+        long since = (this.lastArrival >= sent) ? now - this.lastArrival : rtt;
+        double sample = length / (double) Math.max(since, 1);
+        this.rate = (this.rate == 0) ? sample : this.rate + RATE_GAIN * (sample - this.rate);
+        this.lastArrival = now;
+    }
+
+    /**
+     * ms to wait for a request sent now before giving up on it
+     */
+    public long timeout() {
+        long base = (this.srtt < 0) ? INITIAL_TIMEOUT : (long) (this.srtt + 4 * this.rttvar);
+        base = Math.min(Math.max(base, MIN_TIMEOUT), MAX_TIMEOUT);
+        return Math.min(base * this.backoff, MAX_TIMEOUT);
+    }
+
+    /**
+     * The request for the block at offset of piece sent at time sent timed out. Stops timing it, unless it was
+     * answered or sent again since.
+     *
+     * @return whether the request was still outstanding
+     */
+    public boolean timedOut(int piece, int offset, long sent) {
+        Long at = this.sentAt.get(key(piece, offset));
+        if(at == null || at != sent) {
+            return false;
+        }
+        this.sentAt.remove(key(piece, offset));
+        this.backoff = Math.min(this.backoff * 2, 64);
+        return true;
+    }
+
+    /**
+     * Stop timing the request for the block at offset of piece, it was cancelled
+     */
+    public void cancel(int piece, int offset) {
+        this.sentAt.remove(key(piece, offset));
+    }
+
+    /**
+     * Forget about all outstanding requests (we were choked)
+     */
+    public void clear() {
+        this.sentAt.clear();
+        this.lastArrival = -1;
+    }
+
+    /**
+     * Number of requests currently outstanding
+     */
+    public int outstanding() {
+        return this.sentAt.size();
+    }
+
+    /**
+     * Number of requests that should be outstanding, for blocks of blockSize bytes
+     */
+    public int depth(int blockSize) {
+        if(this.minRtt < 0 || this.rate == 0) {
+            return MIN_DEPTH;
+        }
+        double bdp = this.rate * this.minRtt;
+        int depth = (int) Math.ceil(bdp / blockSize) + 1;
+        return Math.min(Math.max(depth, MIN_DEPTH), this.maxDepth);
+    }
+
+    /**
+     * Measured download rate from this peer, in bytes per second
+     */
+    public double rate() {
+        return this.rate * 1000;
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the contents of the file. FileHandle decides which pieces go where, a
+ * storage reads and writes the bytes. Positions are in bytes from the start
+ * of the file.
+ *
+ * FileStorage reads and writes through a FileChannel. MappedStorage maps the
+ * file into memory, so pieces are sent from and received into the mapping.
+ */
+interface Storage {
+
+    /**
+     * Write the bytes between position and limit of src at position. src is left as it was.
+     */
+    void write(long position, ByteBuffer src) throws IOException;
+
+    /**
+     * Write the bytes between position and limit of each of srcs, one after the other, starting at position. The
+     * buffers' positions are moved past what was written.
+     */
+    void write(long position, ByteBuffer[] srcs) throws IOException;
+
+    /**
+     * Read into dst at position, until dst is full or the file ends
+     */
+    void read(long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Piece message whose contents are length bytes at position. Nothing is read until it is sent.
+     */
+    Message piece(int index, long position, int length);
+
+    /**
+     * Same as piece, for a block at offset of the piece
+     */
+    Message block(int index, int offset, long position, int length);
+
+    /**
+     * Piece message that length bytes received at position go straight into, see Message.receiveContents. Once
+     * they are in, tell stored.
+     */
+    Message storedPiece(int index, long position, int length);
+
+    /**
+     * Same as storedPiece, for a block at offset of the piece
+     */
+    Message storedBlock(int index, int offset, long position, int length);
+
+    /**
+     * length bytes at position were received into received, a message from storedPiece or storedBlock. Whatever
+     * of them was received into memory rather than the file is written now.
+     *
+     * @throws IOException if they could not be written, in which case the block has to be received again
+     */
+    void stored(long position, int length, Message received) throws IOException;
+
+    /**
+     * Make what was written so far durable. Storage opened to sync every write has nothing left to do.
+     */
+    void force() throws IOException;
+
+    /**
+     * Make what was written durable and close
+     */
+    void close() throws IOException;
+}
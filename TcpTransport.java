@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects to neighbors over TCP. Each connection is a PeerConnection, run on a thread of its own or on one of
+ * the event loops, and connections from neighbors are accepted by a PeerListener.
+ *
+ * Neighbors on the same host can be connected to over Unix-domain sockets instead, see NeighborPeer.getSocketPath.
+ * This peer then listens on its own socket path as well as, or instead of, its TCP port.
+ */
+class TcpTransport implements Transport {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    private final ConnectionManager manager;
+    private final FileHandle fH; // pieces are received straight into this, if not null
+    private final EventLoop[] loops; // connections are spread across these, or null for a thread each
+    private final int connectTimeout; // ms
+    private final String socketPath; // Unix-domain socket to listen on, or null
+    private final boolean listenTcp; // whether to listen on the TCP port
+
+    private final ArrayList<ServerSocketChannel> listeners = new ArrayList<ServerSocketChannel>();
+
+    // Connections accepted so far, to spread them across the event loops
+    private final AtomicInteger accepted = new AtomicInteger(0);
+
+    public TcpTransport(ConnectionManager manager, FileHandle fH, EventLoop[] loops, int connectTimeout,
+            String socketPath, boolean listenTcp) {
+        this.manager = manager;
+        this.fH = fH;
+        this.loops = loops;
+        this.connectTimeout = connectTimeout;
+        this.socketPath = socketPath;
+        this.listenTcp = listenTcp;
+    }
+
+    public Transport.Link connect(NeighborPeer peer) {
+        PeerConnection pc = PeerConnection.connectTo(this.manager, peer, this.fH, this.connectTimeout);
+        this.start(pc, peer.getID());
+        return pc;
+    }
+
+    public void listen(int port) throws IOException {
+        if(this.listenTcp) {
+            ServerSocketChannel listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(port));
+            this.listen(listener);
+        }
+        if(this.socketPath != null) {
+            this.listen(UnixSockets.listen(this.socketPath));
+            logger.debug("listening on {} (self = {})", this.socketPath, this.manager.myid());
+        }
+    }
+
+    private synchronized void listen(ServerSocketChannel listener) {
+        this.listeners.add(listener);
+        PeerListener pl = new PeerListener(this.manager.myid(), this.manager.numInbound(), listener, this);
+        if(this.loops == null) {
+            pl.start();
+        } else {
+            pl.listenOn(this.loops[0]);
+        }
+    }
+
+    public synchronized void stopListening() {
+        for(ServerSocketChannel l : this.listeners) {
+            if(l.isOpen()) {
+                try {
+                    l.close();
+                } catch(IOException e) {
+                    logger.error("failed to close listener (self = {}): {}", this.manager.myid(), e);
+                }
+            }
+        }
+        if(this.socketPath != null) {
+            new java.io.File(this.socketPath).delete();
+        }
+    }
+
+    /**
+     * A neighbor connected to us, expect its handshake
+     */
+    public void accepted(SocketChannel channel) {
+        PeerConnection pc = PeerConnection.handleConnection(this.manager, channel, this.fH);
+        this.start(pc, this.accepted.getAndIncrement());
+        this.manager.accepted(pc);
+    }
+
+    // Run the connection on a thread of its own or an event loop
+    private void start(PeerConnection pc, int n) {
+        if(this.loops == null) {
+            pc.start();
+        } else {
+            pc.register(this.loops[(n & Integer.MAX_VALUE) % this.loops.length]);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.lang.reflect.Method;
+
+/**
+ * Makes the threads that connections, listeners and writers run on. These
+ * are platform threads, or virtual threads (Java 21 and later) once
+ * useVirtual() was called. Virtual threads keep the blocking style of a
+ * thread per connection while costing little more than the connection
+ * itself. They are made through reflection, since the source is kept at
+ * Java 7.
+ */
+class Threads {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    // Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.unstarted(Runnable), if the JDK has them
+    private static volatile Method ofVirtual = null;
+    private static Method name = null;
+    private static Method unstarted = null;
+
+    /**
+     * Make virtual threads from now on, if the JDK has them
+     *
+     * @return false if it does not, and platform threads are still made
+     */
+    static synchronized boolean useVirtual() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            // Fails unless virtual threads are enabled (preview in Java 19 and 20)
+            Method m = Thread.class.getMethod("ofVirtual");
+            m.invoke(null);
+            // Set last, newThread goes by it
+            ofVirtual = m;
+            return true;
+        } catch(Exception e) {
+            logger.debug("no virtual threads in this JDK: {}", e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * A new thread, not started yet. Daemon threads do not keep the process
+     * running; virtual threads never do.
+     */
+    static Thread newThread(Runnable r, String threadName, boolean daemon) {
+        Method virtual = ofVirtual;
+        if(virtual != null) {
+            try {
+                Object builder = name.invoke(virtual.invoke(null), threadName);
+                return (Thread) unstarted.invoke(builder, r);
+            } catch(Exception e) {
+                logger.error("failed to make virtual thread {}, making a platform thread: {}", threadName, e);
+            }
+        }
+
+        Thread t = new Thread(r, threadName);
+        t.setDaemon(daemon);
+        return t;
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the bytes per second going one way, in total and to each peer, with
+ * token buckets. Before sending or requesting, ask delay() whether it may go
+ * ahead now, and take() the bytes once it does.
+ *
+ * A bucket may go into debt by one message, so a piece larger than what the
+ * bucket holds still gets through, and the next one waits for the debt to be
+ * paid off. Without any limit set, delay() and take() return right away.
+ */
+class Throttle {
+
+    /**
+     * Token bucket holding up to one second worth of bytes
+     */
+    static class Bucket {
+        private long rate = 0; // bytes per second, 0 for no limit
+        private double tokens = 0;
+        private long last = 0; // when tokens was last filled up (ms)
+
+        synchronized void setRate(long rate, long now) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.last = now;
+        }
+
+        // ms until the bucket is out of debt, 0 if it is now
+        synchronized long delay(long now) {
+            this.fill(now);
+            if(this.tokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-this.tokens * 1000 / this.rate);
+        }
+
+        synchronized void take(long n, long now) {
+            this.fill(now);
+            if(this.rate > 0) {
+                this.tokens -= n;
+            }
+        }
+
+        private void fill(long now) {
+            if(this.rate <= 0) {
+                return;
+            }
+            this.tokens = Math.min(this.rate, this.tokens + (now - this.last) * this.rate / 1000.0);
+            this.last = now;
+        }
+    }
+
+    private final Bucket total = new Bucket();
+    private final ConcurrentHashMap<Integer, Bucket> peers = new ConcurrentHashMap<Integer, Bucket>();
+    private volatile long peerRate = 0;
+
+    // Whether any limit is set
+    private volatile boolean limited = false;
+
+    /**
+     * Set the limits in bytes per second, 0 for none. Can be changed at any time.
+     */
+    public synchronized void setRates(long totalRate, long peerRate) {
+        long now = System.currentTimeMillis();
+        this.total.setRate(totalRate, now);
+        this.peerRate = peerRate;
+        for(Bucket b : this.peers.values()) {
+            b.setRate(peerRate, now);
+        }
+        this.limited = totalRate > 0 || peerRate > 0;
+    }
+
+    /**
+     * ms until bytes for peer may go, 0 if they may go now
+     */
+    public long delay(int peer) {
+        if(!this.limited) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        return Math.max(this.total.delay(now), this.bucket(peer).delay(now));
+    }
+
+    /**
+     * n bytes for peer are going
+     */
+    public void take(int peer, long n) {
+        if(!this.limited) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        this.total.take(n, now);
+        this.bucket(peer).take(n, now);
+    }
+
+    private Bucket bucket(int peer) {
+        Bucket b = this.peers.get(peer);
+        if(b == null) {
+            b = new Bucket();
+            b.setRate(this.peerRate, System.currentTimeMillis());
+            Bucket had = this.peers.putIfAbsent(peer, b);
+            if(had != null) {
+                b = had;
+            }
+        }
+        return b;
+    }
+}
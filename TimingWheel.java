@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel: runs a callback for items once their delay is up,
+ * within one tick. Items are put in the slot their deadline falls in, with
+ * the number of turns of the wheel left before it is due. Adding an item
+ * takes constant time, and each tick only looks at the items of one slot,
+ * instead of a timer task and a priority queue entry for every item.
+ *
+ * Items cannot be cancelled. The callback should check whether the item
+ * still matters when it expires.
+ */
+class TimingWheel<T> implements Runnable {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    /**
+     * Reacts to an item's delay being up. Runs on the wheel's thread, so it
+     * should hand real work elsewhere.
+     */
+    interface Expired<T> {
+        void expired(T item);
+    }
+
+    private static class Entry<T> {
+        final T item;
+        long turns; // times the wheel has to go round before it is due
+
+        Entry(T item, long turns) {
+            this.item = item;
+            this.turns = turns;
+        }
+    }
+
+    private final long tick; // ms per slot
+    private final ArrayList<ArrayList<Entry<T>>> slots;
+    private final Expired<T> expired;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    // Slot the wheel is at, and when the wheel started (ms)
+    private long current = 0;
+    private final long start;
+
+    public TimingWheel(String name, int numSlots, long tick, Expired<T> expired) {
+        this.tick = tick;
+        this.expired = expired;
+        this.slots = new ArrayList<ArrayList<Entry<T>>>(numSlots);
+        for(int i = 0; i < numSlots; i++) {
+            this.slots.add(new ArrayList<Entry<T>>());
+        }
+        this.start = System.currentTimeMillis();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Stop the thread. Items not expired yet never will.
+     */
+    public void stop() {
+        this.stopped = true;
+        this.thread.interrupt();
+    }
+
+    /**
+     * Expire item in delay ms, rounded up to the next tick
+     */
+    public synchronized void schedule(T item, long delay) {
+        long ticks = Math.max(1, (delay + this.tick - 1) / this.tick);
+        int n = this.slots.size();
+        this.slots.get((int) ((this.current + ticks) % n)).add(new Entry<T>(item, (ticks - 1) / n));
+    }
+
+    /**
+     * Run the thread
+     */
+    public void run() {
+        try {
+            while(!this.stopped) {
+                // Catch up on any ticks missed, then sleep until the next one is due
+                long due = System.currentTimeMillis() - this.start;
+                ArrayList<T> items = new ArrayList<T>();
+                synchronized(this) {
+                    while((this.current + 1) * this.tick <= due) {
+                        this.current++;
+                        this.advance(items);
+                    }
+                }
+                for(T item : items) {
+                    if(this.stopped) {
+                        return;
+                    }
+                    try {
+                        this.expired.expired(item);
+                    } catch(RuntimeException e) {
+                        logger.error("{} callback failed: {}", this.thread.getName(), e);
+                    }
+                }
+                Thread.sleep(Math.max(1, (this.current + 1) * this.tick - due));
+            }
+        } catch(InterruptedException e) {
+            logger.debug("{} interrupted", this.thread.getName());
+        }
+    }
+
+    // Take the items due in the current slot, and count a turn off the rest of it
+    private void advance(ArrayList<T> items) {
+        ArrayList<Entry<T>> slot = this.slots.get((int) (this.current % this.slots.size()));
+        int kept = 0;
+        for(int i = 0; i < slot.size(); i++) {
+            Entry<T> e = slot.get(i);
+            if(e.turns == 0) {
+                items.add(e.item);
+            } else {
+                e.turns--;
+                slot.set(kept++, e);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+
+/**
+ * Carries messages between this peer and its neighbors. The ConnectionManager decides whom to connect to, and
+ * when to retry; a transport makes the connections, does the handshake and moves the messages. It reports back to
+ * the manager as connections are established, fail or close, and as messages arrive.
+ *
+ * TcpTransport (the default) talks to peers in other processes over sockets. MemoryTransport hands messages to
+ * peers running in the same process, so many peers can be run on one machine without any sockets.
+ */
+interface Transport {
+
+    /**
+     * A connection with one neighbor. Until it is established, only abort may be called.
+     */
+    interface Link {
+
+        /**
+         * Queue a message for the neighbor
+         */
+        void send(Message msg);
+
+        /**
+         * Take the piece, or block at offset of piece index, off the queue if it has not been sent yet
+         *
+         * @return whether it was taken off
+         */
+        boolean cancel(int index, int offset);
+
+        /**
+         * Whether so many pieces are queued that no more should be sent for now. The manager is told once the
+         * queue drains.
+         */
+        boolean isFull();
+
+        /**
+         * How long (ms) the queue has been full, 0 if it is not
+         */
+        long fullFor(long now);
+
+        /**
+         * Bytes of pieces queued
+         */
+        long queuedBytes();
+
+        /**
+         * Close the connection unless it is established by now
+         */
+        void abort();
+
+        /**
+         * Close the connection right away, dropping whatever is still queued
+         */
+        void drop();
+
+        /**
+         * Close the connection once what is queued has gone out
+         */
+        void close();
+    }
+
+    /**
+     * Start accepting connections from neighbors on port
+     */
+    void listen(int port) throws IOException;
+
+    /**
+     * Stop accepting connections
+     */
+    void stopListening();
+
+    /**
+     * Start connecting to peer. Failing to connect is reported to the manager rather than thrown.
+     */
+    Link connect(NeighborPeer peer);
+}
@@ -0,0 +1,89 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens Unix-domain socket channels (Java 16 and later), for peers on the same
+ * host. They skip the loopback TCP stack, and work like any other socket
+ * channel otherwise: blocking or with a selector, and with transferTo and
+ * transferFrom. They are made through reflection, since the source is kept at
+ * Java 7.
+ */
+class UnixSockets {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    // StandardProtocolFamily.UNIX, SocketChannel.open(ProtocolFamily), ServerSocketChannel.open(ProtocolFamily) and
+    // UnixDomainSocketAddress.of(String), if the JDK has them
+    private static volatile ProtocolFamily unix = null;
+    private static Method openChannel = null;
+    private static Method openServer = null;
+    private static Method address = null;
+    private static boolean looked = false;
+
+    /**
+     * Whether the JDK has Unix-domain socket channels
+     */
+    static synchronized boolean available() {
+        if(!looked) {
+            looked = true;
+            try {
+                Class<?> family = Class.forName("java.net.StandardProtocolFamily");
+                openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+                openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+                address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+                // Set last, the others go by it
+                unix = (ProtocolFamily) family.getField("UNIX").get(null);
+            } catch(Exception e) {
+                logger.debug("no Unix-domain sockets in this JDK: {}", e.toString());
+            }
+        }
+        return unix != null;
+    }
+
+    /**
+     * The address of the socket at path
+     */
+    static SocketAddress address(String path) throws IOException {
+        return (SocketAddress) invoke(address, null, path);
+    }
+
+    /**
+     * A new channel, not connected yet
+     */
+    static SocketChannel open() throws IOException {
+        return (SocketChannel) invoke(openChannel, null, unix);
+    }
+
+    /**
+     * A new channel listening at path. A socket file left there by an earlier run is removed first.
+     */
+    static ServerSocketChannel listen(String path) throws IOException {
+        File file = new File(path);
+        file.delete();
+        ServerSocketChannel listener = (ServerSocketChannel) invoke(openServer, null, unix);
+        listener.bind(address(path));
+        file.deleteOnExit();
+        return listener;
+    }
+
+    private static Object invoke(Method m, Object target, Object arg) throws IOException {
+        if(!available()) {
+            throw new IOException("Unix-domain sockets need Java 16 or later");
+        }
+        try {
+            return m.invoke(target, arg);
+        } catch(java.lang.reflect.InvocationTargetException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch(IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
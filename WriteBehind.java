@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Writes received blocks to storage, and tells when a received piece is durable enough to be announced. How
+ * durable depends on the mode:
+ *
+ * Sync: every write is on disk before it returns. Blocks are written right away, and a piece is durable once all
+ * of its blocks are written.
+ *
+ * Batch: writes go to the OS, and storage is forced once every syncPieces pieces or syncInterval ms. A piece is
+ * durable once it was forced.
+ *
+ * Close: writes go to the OS, and storage is only forced when it is closed. A piece is durable once written.
+ *
+ * Except in sync mode, blocks are copied and written behind, on a thread of its own. It takes whatever has queued up
+ * by then, sorts it by position, and writes each run of adjacent blocks with a single write.
+ */
+class WriteBehind implements Runnable {
+
+    private static final ch.qos.logback.classic.Logger logger = PeerProcess.getLogger();
+
+    enum Mode {
+        Sync, Batch, Close;
+    }
+
+    /**
+     * Reacts to a piece being durable, or to writing it failing, after which it has to be received again
+     */
+    interface Durable {
+        void durable(int piece, int peerid);
+        void lost(int piece);
+    }
+
+    // Most bytes of blocks waiting to be written before whoever writes more has to wait
+    private static final long MAX_QUEUED_BYTES = 64L << 20;
+
+    // A block of piece to write, or with no contents, a piece whose blocks were all queued before it
+    private static class Write {
+        final long position;
+        final ByteBuffer contents;
+        final int piece;
+        final int peerid;
+        final boolean last;
+
+        Write(long position, ByteBuffer contents, int piece, int peerid, boolean last) {
+            this.position = position;
+            this.contents = contents;
+            this.piece = piece;
+            this.peerid = peerid;
+            this.last = last;
+        }
+    }
+
+    private static final Comparator<Write> BY_POSITION = new Comparator<Write>() {
+        public int compare(Write a, Write b) {
+            return Long.compare(a.position, b.position);
+        }
+    };
+
+    private final Storage storage;
+    private final Mode mode;
+    private final int syncPieces;
+    private final long syncInterval; // ms
+    private final Durable durable;
+    private final Thread thread;
+
+    // Waiting to be written, and the bytes of contents among them
+    private ArrayList<Write> queue = new ArrayList<Write>();
+    private long queuedBytes = 0;
+    private boolean closing = false;
+
+    // Pieces with a block that failed to be written, until they are received again. Their blocks may be written in
+    // an earlier batch than the one that says the piece is complete.
+    private final HashSet<Integer> failed = new HashSet<Integer>();
+
+    // Pieces written but not forced yet, and when the first of them was written (ms; writer thread only)
+    private final ArrayList<Write> unforced = new ArrayList<Write>();
+    private long unforcedSince = 0;
+    private boolean forceNow = false;
+
+    public WriteBehind(Storage storage, Mode mode, int syncPieces, long syncInterval, Durable durable) {
+        this.storage = storage;
+        this.mode = mode;
+        this.syncPieces = Math.max(1, syncPieces);
+        this.syncInterval = syncInterval;
+        this.durable = durable;
+        this.thread = (mode == Mode.Sync) ? null : Threads.newThread(this, "write-behind", true);
+        if(this.thread != null) {
+            this.thread.start();
+        }
+    }
+
+    /**
+     * Write the bytes between position and limit of src at position. Unless in sync mode they are copied, and src
+     * can be reused right away. Waits if too much is waiting to be written already.
+     */
+    public void write(int piece, long position, ByteBuffer src) throws IOException {
+        if(this.mode == Mode.Sync) {
+            this.storage.write(position, src);
+            return;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src.duplicate());
+        copy.flip();
+        synchronized(this) {
+            while(this.queuedBytes >= MAX_QUEUED_BYTES && !this.closing) {
+                try {
+                    this.wait();
+                } catch(InterruptedException e) {
+                    throw new java.io.InterruptedIOException("interrupted waiting to write");
+                }
+            }
+            this.queue.add(new Write(position, copy, piece, -1, false));
+            this.queuedBytes += copy.remaining();
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Every block of piece was written or queued. It is announced as durable once it is.
+     *
+     * @param last whether it is the last piece missing, which is forced right away in batch mode
+     */
+    public void completed(int piece, int peerid, boolean last) {
+        if(this.mode == Mode.Sync) {
+            this.durable.durable(piece, peerid);
+            return;
+        }
+        synchronized(this) {
+            this.queue.add(new Write(0, null, piece, peerid, last));
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * piece is being received again after it was lost, forget that writing it failed
+     */
+    public synchronized void retry(int piece) {
+        this.failed.remove(piece);
+    }
+
+    /**
+     * Write what is queued, stop the thread and close storage, which forces what was written
+     */
+    public void close() throws IOException {
+        if(this.thread != null) {
+            synchronized(this) {
+                this.closing = true;
+                this.notifyAll();
+            }
+            try {
+                this.thread.join();
+            } catch(InterruptedException e) {
+                logger.warn("interrupted waiting for writes to finish");
+            }
+        }
+        this.storage.close();
+    }
+
+    /**
+     * Run the thread
+     */
+    public void run() {
+        while(true) {
+            ArrayList<Write> batch;
+            synchronized(this) {
+                while(this.queue.isEmpty() && !this.closing && !this.forceDue()) {
+                    try {
+                        this.wait(this.unforced.isEmpty() ? 0
+                            : Math.max(1, this.unforcedSince + this.syncInterval - System.currentTimeMillis()));
+                    } catch(InterruptedException e) {
+                        logger.debug("write-behind interrupted");
+                        return;
+                    }
+                }
+                if(this.queue.isEmpty() && this.closing) {
+                    return;
+                }
+                batch = this.queue;
+                this.queue = new ArrayList<Write>();
+                this.queuedBytes = 0;
+                this.notifyAll();
+            }
+
+            this.writeAll(batch);
+
+            // Pieces come after their blocks in the queue, so those are written by now, in this batch or before
+            for(Write w : batch) {
+                if(w.contents != null) {
+                    continue;
+                }
+                boolean lost;
+                synchronized(this) {
+                    lost = this.failed.contains(w.piece);
+                }
+                if(lost) {
+                    this.durable.lost(w.piece);
+                } else if(this.mode == Mode.Close) {
+                    this.durable.durable(w.piece, w.peerid);
+                } else {
+                    if(this.unforced.isEmpty()) {
+                        this.unforcedSince = System.currentTimeMillis();
+                    }
+                    this.unforced.add(w);
+                    this.forceNow |= w.last;
+                }
+            }
+            if(this.forceDue()) {
+                this.force();
+            }
+        }
+    }
+
+    // Whether the pieces written should be forced now (batch mode)
+    private boolean forceDue() {
+        return !this.unforced.isEmpty() && (this.forceNow || this.unforced.size() >= this.syncPieces
+            || System.currentTimeMillis() - this.unforcedSince >= this.syncInterval);
+    }
+
+    private void force() {
+        try {
+            this.storage.force();
+        } catch(IOException e) {
+            // Still written, the OS gets them to disk eventually
+            logger.error("failed to force {} pieces to disk: {}", this.unforced.size(), e);
+        }
+        for(Write w : this.unforced) {
+            this.durable.durable(w.piece, w.peerid);
+        }
+        this.unforced.clear();
+        this.forceNow = false;
+    }
+
+    // Write the blocks of batch in order of position, each run of adjacent ones together. The pieces whose blocks
+    // failed to be written are noted in failed.
+    private void writeAll(ArrayList<Write> batch) {
+        ArrayList<Write> blocks = new ArrayList<Write>(batch.size());
+        for(Write w : batch) {
+            if(w.contents != null) {
+                blocks.add(w);
+            }
+        }
+        Collections.sort(blocks, BY_POSITION);
+
+        int i = 0;
+        while(i < blocks.size()) {
+            long start = blocks.get(i).position;
+            long end = start;
+            int j = i;
+            while(j < blocks.size() && blocks.get(j).position == end) {
+                end += blocks.get(j).contents.remaining();
+                j++;
+            }
+
+            ByteBuffer[] run = new ByteBuffer[j - i];
+            for(int k = i; k < j; k++) {
+                run[k - i] = blocks.get(k).contents;
+            }
+            try {
+                this.storage.write(start, run);
+            } catch(IOException e) {
+                logger.error("failed writing {} bytes at {}: {}", end - start, start, e);
+                synchronized(this) {
+                    for(int k = i; k < j; k++) {
+                        this.failed.add(blocks.get(k).piece);
+                    }
+                }
+            }
+            i = j;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Many peers' threads choosing, receiving, cancelling and serving blocks of one FileHandle at once. In the end every
+ * piece must be in the bit-field exactly once, and the file must hold what was sent.
+ */
+public class FileHandleStressTest {
+
+    private static final int MYID = 9901;
+    private static final String FILE_NAME = "stress.dat";
+    private static final int FILE_SIZE = 4 * 1024 * 1024 + 4321;
+    private static final int PIECE_SIZE = 8 * 1024;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int PEERS = 8;
+    private static final int READERS = 2;
+    // Downloads per test, races that go wrong rarely show up in some of them
+    private static final int ROUNDS = 5;
+    private static final long TIMEOUT = 60000;
+
+    private File dir;
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        PeerProcess.getLogger().setLevel(Level.WARN);
+        this.dir = new File("peer_" + MYID);
+        this.dir.mkdirs();
+        this.data = new byte[FILE_SIZE];
+        new Random(MYID).nextBytes(this.data);
+    }
+
+    @After
+    public void tearDown() {
+        new File(this.dir, FILE_NAME).delete();
+        this.dir.delete();
+    }
+
+    @Test
+    public void syncWrites() throws Exception {
+        for(int i = 0; i < ROUNDS; i++) {
+            this.download("sync");
+        }
+    }
+
+    @Test
+    public void batchWrites() throws Exception {
+        for(int i = 0; i < ROUNDS; i++) {
+            this.download("batch");
+        }
+    }
+
+    private void download(String durability) throws Exception {
+        Set<Integer> peerids = new HashSet<Integer>();
+        for(int i = 0; i < PEERS; i++) {
+            peerids.add(i);
+        }
+        final FileHandle fH = new FileHandle(MYID, false, FILE_NAME, FILE_SIZE, PIECE_SIZE, BLOCK_SIZE, peerids,
+                "file", durability, 8, 20, null);
+        final int numPieces = fH.maxPiece();
+        final AtomicIntegerArray stored = new AtomicIntegerArray(numPieces);
+        fH.setPieceListener(new FileHandle.PieceListener() {
+            public void pieceStored(int pieceIdx, int peerid) {
+                stored.incrementAndGet(pieceIdx);
+            }
+        });
+        BitSet full = new BitSet(numPieces);
+        full.set(0, numPieces);
+        for(int peer : peerids) {
+            fH.setBitfield(peer, full);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < PEERS; i++) {
+            final int peer = i;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        receive(fH, peer, peer < 2, deadline);
+                    } catch(Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }, "peer-" + peer));
+        }
+        for(int i = 0; i < READERS; i++) {
+            final int seed = i;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(fH, seed, deadline);
+                    } catch(Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }, "reader-" + seed));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        assertNull("thread failed: " + failure.get(), failure.get());
+
+        assertEquals(0, fH.getNumMissing());
+        assertTrue("missing from bit-field", fH.getBitfield().nextClearBit(0) >= numPieces);
+        for(int p = 0; p < numPieces; p++) {
+            assertEquals("times piece " + p + " was stored", 1, stored.get(p));
+        }
+        for(int peer : peerids) {
+            assertEquals("requests left with " + peer, 0, fH.numRequested(peer));
+        }
+        // With every request answered or cancelled, no bookkeeping of pieces may be left over
+        assertTrue("pieces left open", fH.open.isEmpty());
+        assertTrue("pieces left started", fH.started.isEmpty());
+        assertTrue("pieces left storing", fH.storing.isEmpty());
+        for(int p = 0; p < numPieces; p++) {
+            assertNull("progress left of piece " + p, fH.progress[p]);
+        }
+
+        fH.close();
+        File file = new File(this.dir, FILE_NAME);
+        assertArrayEquals(this.data, Files.readAllBytes(file.toPath()));
+        file.delete();
+    }
+
+    // Ask peer for blocks and answer them, now and then cancelling or being choked instead, until all is stored
+    private void receive(FileHandle fH, int peer, boolean wholePieces, long deadline) {
+        Random rand = new Random(peer);
+        while(fH.getNumMissing() > 0) {
+            assertTrue("download did not finish", System.currentTimeMillis() < deadline);
+            FileHandle.Block b = fH.getBlockToReceive(peer, wholePieces);
+            if(b == null) {
+                // Everything is asked for or being stored
+                Thread.yield();
+                continue;
+            }
+            int r = rand.nextInt(100);
+            if(r < 5) {
+                fH.cancelBlockRequest(peer, b.piece, b.offset);
+            } else if(r < 7) {
+                fH.cancelBlockRequests(peer);
+            } else {
+                int pos = b.piece * PIECE_SIZE + b.offset;
+                fH.writeBlock(b.piece, b.offset, ByteBuffer.wrap(this.data, pos, b.length), peer);
+                fH.cancelOtherRequests(peer, b.piece, b.offset, b.length);
+            }
+        }
+        fH.cancelBlockRequests(peer);
+    }
+
+    // Read pieces we have, as if sending them, checking they hold what was received
+    private void serve(FileHandle fH, int seed, long deadline) {
+        Random rand = new Random(-1 - seed);
+        int numPieces = fH.maxPiece();
+        while(fH.getNumMissing() > 0) {
+            assertTrue("download did not finish", System.currentTimeMillis() < deadline);
+            int p = rand.nextInt(numPieces);
+            if(!fH.hasPiece(p)) {
+                continue;
+            }
+            ByteBuffer contents = fH.getPieceContents(p);
+            int length = fH.pieceLength(p);
+            assertEquals("length of piece " + p, length, contents.remaining());
+            byte[] got = new byte[length];
+            contents.get(got);
+            byte[] expected = new byte[length];
+            System.arraycopy(this.data, p * PIECE_SIZE, expected, 0, length);
+            assertArrayEquals("contents of piece " + p, expected, got);
+        }
+    }
+}